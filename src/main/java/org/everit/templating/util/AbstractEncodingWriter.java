@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Helper class to be able to create {@link Writer} implementations that encode the written
+ * characters into bytes. The characters are collected in a fixed size buffer and encoded in blocks,
+ * so the memory usage does not depend on the size of the output. Surrogate pairs that are split
+ * between two write calls are handled correctly. Instances are not thread-safe.
+ */
+public abstract class AbstractEncodingWriter extends Writer {
+
+  private static final int MIN_BUFFER_SIZE = 2;
+
+  private static final int MIN_BYTE_BUFFER_SIZE = 16;
+
+  /**
+   * The buffer that holds the encoded bytes until they are passed to
+   * {@link #writeBytes(ByteBuffer)}.
+   */
+  private final ByteBuffer byteBuffer;
+
+  /**
+   * The buffer that collects the characters until they are encoded.
+   */
+  private final CharBuffer charBuffer;
+
+  private boolean closed = false;
+
+  private final CharsetEncoder encoder;
+
+  /**
+   * Constructor.
+   *
+   * @param charset
+   *          The charset that is used to encode the characters. Malformed and unmappable
+   *          characters are replaced.
+   * @param bufferSize
+   *          The number of characters that are collected before they are encoded. Must be at
+   *          least two to be able to hold a surrogate pair.
+   */
+  protected AbstractEncodingWriter(final Charset charset, final int bufferSize) {
+    if (bufferSize < MIN_BUFFER_SIZE) {
+      throw new IllegalArgumentException("Buffer size must be at least " + MIN_BUFFER_SIZE + ": "
+          + bufferSize);
+    }
+    this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.charBuffer = CharBuffer.allocate(bufferSize);
+    this.byteBuffer = ByteBuffer.allocate(Math.max(MIN_BYTE_BUFFER_SIZE,
+        (int) Math.ceil(bufferSize * encoder.maxBytesPerChar())));
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      encodeChars(true);
+      while (encoder.flush(byteBuffer).isOverflow()) {
+        drainBytes();
+      }
+      drainBytes();
+    } finally {
+      closed = true;
+    }
+    closeBytes();
+  }
+
+  /**
+   * Called once when the writer is closed, after all of the encoded bytes were passed to
+   * {@link #writeBytes(ByteBuffer)}. The default implementation does nothing.
+   *
+   * @throws IOException
+   *           if the underlying target cannot be closed.
+   */
+  protected void closeBytes() throws IOException {
+    // Nothing to do by default
+  }
+
+  private void drainBytes() throws IOException {
+    byteBuffer.flip();
+    if (byteBuffer.hasRemaining()) {
+      writeBytes(byteBuffer);
+    }
+    byteBuffer.clear();
+  }
+
+  private void encodeChars(final boolean endOfInput) throws IOException {
+    charBuffer.flip();
+    boolean underflow = false;
+    while (!underflow) {
+      CoderResult coderResult = encoder.encode(charBuffer, byteBuffer, endOfInput);
+      if (coderResult.isOverflow()) {
+        drainBytes();
+      } else {
+        underflow = true;
+      }
+    }
+    charBuffer.compact();
+  }
+
+  /**
+   * Encodes the characters that are collected in the buffer and passes the bytes to
+   * {@link #writeBytes(ByteBuffer)}. Subclasses can call this method before they write bytes to
+   * their target directly, to keep the order of the output. A trailing high surrogate is kept in
+   * the buffer until its pair is written.
+   *
+   * @throws IOException
+   *           if the writer is closed or the bytes cannot be written.
+   */
+  protected void encodeBufferedChars() throws IOException {
+    ensureOpen();
+    encodeChars(false);
+    drainBytes();
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Writer is closed");
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    encodeBufferedChars();
+    flushBytes();
+  }
+
+  /**
+   * Called when the writer is flushed, after all of the encoded bytes were passed to
+   * {@link #writeBytes(ByteBuffer)}. The default implementation does nothing.
+   *
+   * @throws IOException
+   *           if the underlying target cannot be flushed.
+   */
+  protected void flushBytes() throws IOException {
+    // Nothing to do by default
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public void write(final char[] cbuf, final int off, final int len) throws IOException {
+    ensureOpen();
+    int offset = off;
+    int remaining = len;
+    while (remaining > 0) {
+      int n = Math.min(remaining, charBuffer.remaining());
+      charBuffer.put(cbuf, offset, n);
+      offset += n;
+      remaining -= n;
+      if (!charBuffer.hasRemaining()) {
+        encodeChars(false);
+      }
+    }
+  }
+
+  @Override
+  public void write(final int c) throws IOException {
+    ensureOpen();
+    charBuffer.put((char) c);
+    if (!charBuffer.hasRemaining()) {
+      encodeChars(false);
+    }
+  }
+
+  @Override
+  public void write(final String str, final int off, final int len) throws IOException {
+    ensureOpen();
+    int offset = off;
+    int remaining = len;
+    while (remaining > 0) {
+      int n = Math.min(remaining, charBuffer.remaining());
+      charBuffer.put(str, offset, offset + n);
+      offset += n;
+      remaining -= n;
+      if (!charBuffer.hasRemaining()) {
+        encodeChars(false);
+      }
+    }
+  }
+
+  /**
+   * Passes a block of encoded bytes to the target of the writer. The implementation must consume
+   * all remaining bytes of the buffer, as the buffer is reused after the call.
+   *
+   * @param bytes
+   *          The encoded bytes between the position and the limit of the buffer.
+   * @throws IOException
+   *           if the bytes cannot be written.
+   */
+  protected abstract void writeBytes(ByteBuffer bytes) throws IOException;
+
+}
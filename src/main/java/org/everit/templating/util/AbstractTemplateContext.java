@@ -16,7 +16,12 @@
 package org.everit.templating.util;
 
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import org.everit.templating.TemplateConstants;
 import org.everit.templating.TemplateContext;
 
 /**
@@ -24,6 +29,16 @@ import org.everit.templating.TemplateContext;
  */
 public abstract class AbstractTemplateContext implements TemplateContext {
 
+  /**
+   * See {@link #getFragmentChangeTracker()}.
+   */
+  private FragmentChangeTracker fragmentChangeTracker;
+
+  /**
+   * The number of {@link #renderFragment(String, Map)} calls that did not return yet.
+   */
+  private int fragmentDepth = 0;
+
   /**
    * See {@link #getFragmentId()}.
    */
@@ -34,6 +49,21 @@ public abstract class AbstractTemplateContext implements TemplateContext {
    */
   private Map<String, Object> mVars;
 
+  /**
+   * See {@link #getRenderArena()}.
+   */
+  private RenderArena renderArena;
+
+  /**
+   * See {@link #getRenderDeadline()}.
+   */
+  private RenderDeadline renderDeadline;
+
+  /**
+   * See {@link #getVariableAccessProfile()}.
+   */
+  private VariableAccessProfile variableAccessProfile;
+
   /**
    * Constructor.
    *
@@ -49,15 +79,84 @@ public abstract class AbstractTemplateContext implements TemplateContext {
     this.mVars = vars;
   }
 
+  /**
+   * Creates a new context instance that is used to render a fragment on another thread. Classes
+   * that inherit from this class should override this function to be able to render fragments via
+   * {@link #renderFragmentAsync(String, Map, Executor)}. The default implementation throws
+   * {@link UnsupportedOperationException}.
+   *
+   * @param fragmentId
+   *          The id of the fragment that will be rendered with the new context.
+   * @param vars
+   *          The variables of the fragment that are isolated from the variables of this context.
+   * @return The new context instance that does not share mutable state with this one.
+   */
+  protected AbstractTemplateContext createFragmentContext(final String fragmentId,
+      final Map<String, Object> vars) {
+    throw new UnsupportedOperationException(
+        "Concurrent fragment rendering is not supported by " + getClass().getName());
+  }
+
+  public FragmentChangeTracker getFragmentChangeTracker() {
+    return fragmentChangeTracker;
+  }
+
   @Override
   public String getFragmentId() {
     return mfragmentId;
   }
 
+  public RenderArena getRenderArena() {
+    return renderArena;
+  }
+
+  /**
+   * Returns the deadline of the rendering that is inherited by all fragments, including the ones
+   * rendered via {@link #renderFragmentAsync(String, Map, Executor)}.
+   *
+   * @return The deadline or <code>null</code> if the time of the rendering is not limited.
+   */
+  public RenderDeadline getRenderDeadline() {
+    return renderDeadline;
+  }
+
+  public VariableAccessProfile getVariableAccessProfile() {
+    return variableAccessProfile;
+  }
+
   public Map<String, Object> getVars() {
     return mVars;
   }
 
+  /**
+   * Binds this context to a new rendering, so the same instance can be reused instead of creating
+   * a new one for every rendering. The fragment id and the variables are replaced, the render
+   * deadline is removed and the {@link RenderArena} is reset. The fragment change tracker and the
+   * variable access profile are kept, as they collect information across renderings. Classes that
+   * inherit from this class and hold rendering specific state should override
+   * {@link #resetState()}.
+   *
+   * @param fragmentId
+   *          The id of the fragment of the new rendering.
+   * @param vars
+   *          The variables of the new rendering.
+   * @throws IllegalStateException
+   *           if a fragment is being rendered via this context or the render arena has objects that
+   *           were not released during the previous rendering.
+   */
+  public void rebind(final String fragmentId, final Map<String, Object> vars) {
+    if (fragmentDepth != 0) {
+      throw new IllegalStateException("Template context cannot be rebound during rendering");
+    }
+    this.mfragmentId = fragmentId;
+    this.mVars = vars;
+    this.renderDeadline = null;
+    resetState();
+    if (renderArena != null) {
+      renderArena.reset();
+    }
+  }
+
   @Override
   public String renderFragment(final String fragmentId) {
     return renderFragment(fragmentId, null);
@@ -65,23 +164,171 @@ public abstract class AbstractTemplateContext implements TemplateContext {
 
   @Override
   public String renderFragment(final String fragmentId, final Map<String, Object> parameters) {
+    if (renderDeadline != null) {
+      renderDeadline.checkNow();
+    }
     Map<String, Object> parentVars = mVars;
     String parentFragmentId = this.mfragmentId;
 
-    mVars = new InheritantMap<String, Object>(mVars, false);
-    if (parameters != null) {
-      mVars.putAll(parameters);
+    boolean scopeFromArena = renderArena != null && variableAccessProfile == null;
+    InheritantMap<String, Object> fragmentVars;
+    if (variableAccessProfile != null) {
+      fragmentVars = new VariableAccessTrackingMap(parentVars, variableAccessProfile, fragmentId);
+    } else if (scopeFromArena) {
+      fragmentVars = renderArena.acquireScope(parentVars);
+    } else {
+      fragmentVars = new InheritantMap<String, Object>(parentVars, false);
     }
+    mVars = fragmentVars;
     this.mfragmentId = fragmentId;
+    fragmentDepth++;
 
     try {
-      return renderFragmentInternal(fragmentId, mVars);
+      if (parameters != null) {
+        fragmentVars.putAll(parameters);
+      }
+      String result = renderFragmentInternal(fragmentId, fragmentVars);
+      if (fragmentChangeTracker != null) {
+        fragmentChangeTracker.record(fragmentId, result);
+      }
+      return result;
     } finally {
+      fragmentDepth--;
       mVars = parentVars;
       mfragmentId = parentFragmentId;
+      if (scopeFromArena) {
+        renderArena.releaseScope(fragmentVars);
+      }
     }
   }
 
+  /**
+   * Starts rendering a fragment on the specified executor. The fragment is rendered with a new
+   * context created by {@link #createFragmentContext(String, Map)} and with a snapshot of the
+   * current variables (see {@link InheritantMap#snapshot()}), so the rendering of the current
+   * fragment can go on while the fragment is rendered. The result can be written in document order
+   * via {@link TemplateWriter#appendFragment(Future)}.
+   *
+   * @param fragmentId
+   *          The id of the fragment that should be rendered.
+   * @param parameters
+   *          Additional variables of the fragment or <code>null</code>.
+   * @param executor
+   *          The executor that renders the fragment.
+   * @return The future result of the fragment rendering.
+   */
+  public Future<String> renderFragmentAsync(final String fragmentId,
+      final Map<String, Object> parameters, final Executor executor) {
+    Map<String, Object> parentVars = mVars;
+    if (parentVars instanceof InheritantMap) {
+      parentVars = ((InheritantMap<String, Object>) parentVars).snapshot();
+    }
+    InheritantMap<String, Object> fragmentVars;
+    if (variableAccessProfile != null) {
+      fragmentVars = new VariableAccessTrackingMap(parentVars, variableAccessProfile, fragmentId);
+    } else {
+      fragmentVars = new InheritantMap<String, Object>(parentVars, false);
+    }
+    if (parameters != null) {
+      fragmentVars.putAll(parameters);
+    }
+
+    final AbstractTemplateContext fragmentContext = createFragmentContext(fragmentId,
+        fragmentVars);
+    // Captured on the calling thread, as this context might be rebound before the task runs
+    final RenderDeadline deadline = renderDeadline;
+    fragmentContext.renderDeadline = deadline;
+    fragmentContext.variableAccessProfile = variableAccessProfile;
+    final FragmentChangeTracker tracker = fragmentChangeTracker;
+    fragmentContext.fragmentChangeTracker = tracker;
+    // In case the executor rejects the task, the slot stays unrecorded and the fragment is
+    // reported as changed by the tracker
+    final FragmentChangeTracker.Slot trackerSlot =
+        tracker != null ? tracker.reserveSlot(fragmentId) : null;
+    // Checked without the fragment scope, so the variable access profile does not record a read
+    String contextKey = TemplateConstants.VAR_TEMPLATE_CONTEXT;
+    if (fragmentVars.getInternalMap().containsKey(contextKey)
+        || (parentVars != null && parentVars.containsKey(contextKey))) {
+      fragmentVars.putWithoutChecks(TemplateConstants.VAR_TEMPLATE_CONTEXT, fragmentContext);
+    }
+
+    final Map<String, Object> vars = fragmentVars;
+    FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+      @Override
+      public String call() {
+        if (deadline != null) {
+          deadline.checkNow();
+        }
+        String result = fragmentContext.renderFragmentInternal(fragmentId, vars);
+        if (tracker != null) {
+          tracker.record(trackerSlot, result);
+        }
+        return result;
+      }
+    });
+    executor.execute(task);
+    return task;
+  }
+
+  /**
+   * Called by {@link #rebind(String, Map)} to clear the rendering specific state of the classes
+   * that inherit from this class. The default implementation does nothing.
+   */
+  protected void resetState() {
+    // Nothing to reset by default
+  }
+
+  /**
+   * Sets the tracker that records the hash of the output of every fragment that is rendered via
+   * this context, so the fragments whose output changed since the previous rendering can be
+   * queried.
+   *
+   * @param fragmentChangeTracker
+   *          The tracker or <code>null</code> if the fragment outputs should not be tracked.
+   */
+  public void setFragmentChangeTracker(final FragmentChangeTracker fragmentChangeTracker) {
+    this.fragmentChangeTracker = fragmentChangeTracker;
+  }
+
+  /**
+   * Sets the arena that recycles the variable scopes of the fragments that are rendered via
+   * {@link #renderFragment(String, Map)}. The scope of a fragment is released when the fragment is
+   * rendered, so {@link #renderFragmentInternal(String, Map)} must not keep a reference to it. The
+   * scopes of {@link #renderFragmentAsync(String, Map, Executor)} are not recycled.
+   *
+   * @param renderArena
+   *          The arena or <code>null</code> if the scopes should not be recycled.
+   */
+  public void setRenderArena(final RenderArena renderArena) {
+    this.renderArena = renderArena;
+  }
+
+  /**
+   * Sets the deadline of the rendering. The deadline is checked every time a fragment is rendered.
+   * The same instance should be passed to the {@link TemplateWriter} and {@link UniversalIterable}
+   * instances of the rendering.
+   *
+   * @param renderDeadline
+   *          The deadline or <code>null</code> if the time of the rendering is not limited.
+   */
+  public void setRenderDeadline(final RenderDeadline renderDeadline) {
+    this.renderDeadline = renderDeadline;
+  }
+
+  /**
+   * Sets the profile that records which variables are read by the fragments that are rendered via
+   * this context. The variables of the fragments are put into {@link VariableAccessTrackingMap}
+   * instances while a profile is set, and the scopes are not recycled by the
+   * {@link RenderArena}. To record the reads of the root of the template, the template engine
+   * should wrap the root variables into a {@link VariableAccessTrackingMap} as well.
+   *
+   * @param variableAccessProfile
+   *          The profile or <code>null</code> if the variable reads should not be recorded.
+   */
+  public void setVariableAccessProfile(final VariableAccessProfile variableAccessProfile) {
+    this.variableAccessProfile = variableAccessProfile;
+  }
+
   /**
    * Classes that inherit from this class should implement this function to be able to render
    * fragments via the templateContext.
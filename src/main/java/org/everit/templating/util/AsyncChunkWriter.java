@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writer that encodes the output into chunks and passes the chunks to an asynchronous
+ * {@link ChunkSink}. The rendering thread can go on while the previous chunks are written by the
+ * sink. The number of chunks that are waiting to be written is limited. In case the limit is
+ * reached, the writer blocks until the sink completes a chunk, so a slow client cannot make the
+ * output pile up in the memory.
+ *
+ * <p>
+ * Flushing the writer passes the collected bytes to the sink but does not wait for them to be
+ * written. Closing the writer waits until all chunks are written and closes the sink. In case the
+ * sink reports a failure, the next operation on the writer throws an {@link IOException}.
+ */
+public class AsyncChunkWriter extends AbstractEncodingWriter {
+
+  /**
+   * Callback of a chunk that gives back the buffer to the writer when the chunk is written. The
+   * buffer is given back only once, even if the callback is notified more than once.
+   */
+  private class ReleasingChunkCallback implements ChunkCallback {
+
+    private final ByteBuffer chunk;
+
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    ReleasingChunkCallback(final ByteBuffer chunk) {
+      this.chunk = chunk;
+    }
+
+    @Override
+    public void completed() {
+      if (released.compareAndSet(false, true)) {
+        releaseChunk(chunk);
+      }
+    }
+
+    @Override
+    public void failed(final Throwable cause) {
+      if (failure == null) {
+        failure = cause;
+      }
+      completed();
+    }
+
+  }
+
+  /**
+   * The number of chunk buffers that were created by this writer.
+   */
+  private int allocatedChunkCount = 0;
+
+  private final int chunkSize;
+
+  /**
+   * The chunk that is currently filled by the writer.
+   */
+  private ByteBuffer currentChunk;
+
+  /**
+   * The first failure that was reported by the sink.
+   */
+  private volatile Throwable failure;
+
+  /**
+   * The chunk buffers that are not used by the sink and can be filled again.
+   */
+  private final BlockingQueue<ByteBuffer> freeChunks;
+
+  private final int maxPendingChunks;
+
+  private final ChunkSink sink;
+
+  /**
+   * Constructor.
+   *
+   * @param sink
+   *          The sink that the chunks are passed to.
+   * @param charset
+   *          The charset that is used to encode the output.
+   * @param chunkSize
+   *          The size of one chunk in bytes.
+   * @param maxPendingChunks
+   *          The maximum number of chunks that can be under writing by the sink. The memory that
+   *          is used by the writer is at most chunkSize * maxPendingChunks bytes plus the encoding
+   *          buffer.
+   */
+  public AsyncChunkWriter(final ChunkSink sink, final Charset charset, final int chunkSize,
+      final int maxPendingChunks) {
+    super(charset, chunkSize);
+    if (maxPendingChunks <= 0) {
+      throw new IllegalArgumentException("Maximum number of pending chunks must be positive: "
+          + maxPendingChunks);
+    }
+    this.sink = sink;
+    this.chunkSize = chunkSize;
+    this.maxPendingChunks = maxPendingChunks;
+    this.freeChunks = new ArrayBlockingQueue<ByteBuffer>(maxPendingChunks);
+  }
+
+  private ByteBuffer acquireChunk() throws IOException {
+    checkFailure();
+    ByteBuffer result = freeChunks.poll();
+    if (result == null) {
+      if (allocatedChunkCount < maxPendingChunks) {
+        allocatedChunkCount++;
+        result = ByteBuffer.allocate(chunkSize);
+      } else {
+        result = takeFreeChunk();
+        checkFailure();
+      }
+    }
+    return result;
+  }
+
+  private void checkFailure() throws IOException {
+    Throwable cause = failure;
+    if (cause != null) {
+      throw new IOException("Writing chunk to sink failed", cause);
+    }
+  }
+
+  @Override
+  protected void closeBytes() throws IOException {
+    dispatchCurrentChunk();
+    for (int i = 0; i < allocatedChunkCount; i++) {
+      takeFreeChunk();
+    }
+    checkFailure();
+    sink.close();
+  }
+
+  private void dispatchCurrentChunk() throws IOException {
+    if (currentChunk == null) {
+      return;
+    }
+    ByteBuffer chunk = currentChunk;
+    currentChunk = null;
+    chunk.flip();
+    if (chunk.hasRemaining()) {
+      ReleasingChunkCallback callback = new ReleasingChunkCallback(chunk);
+      try {
+        sink.write(chunk, callback);
+      } catch (RuntimeException e) {
+        // The sink did not take the chunk, so it will not notify the callback either
+        callback.failed(e);
+        throw new IOException("Writing chunk to sink failed", e);
+      }
+    } else {
+      releaseChunk(chunk);
+    }
+  }
+
+  @Override
+  protected void flushBytes() throws IOException {
+    checkFailure();
+    dispatchCurrentChunk();
+  }
+
+  /**
+   * Returns the number of chunks that were passed to the sink and are not written yet.
+   *
+   * @return The number of pending chunks.
+   */
+  public int getPendingChunkCount() {
+    int pending = allocatedChunkCount - freeChunks.size();
+    if (currentChunk != null) {
+      pending--;
+    }
+    return pending;
+  }
+
+  private void releaseChunk(final ByteBuffer chunk) {
+    chunk.clear();
+    freeChunks.offer(chunk);
+  }
+
+  private ByteBuffer takeFreeChunk() throws InterruptedIOException {
+    try {
+      return freeChunks.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the sink to write a chunk");
+    }
+  }
+
+  @Override
+  protected void writeBytes(final ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      if (currentChunk == null) {
+        currentChunk = acquireChunk();
+      }
+      int n = Math.min(bytes.remaining(), currentChunk.remaining());
+      ByteBuffer part = bytes.duplicate();
+      part.limit(part.position() + n);
+      currentChunk.put(part);
+      bytes.position(bytes.position() + n);
+      if (!currentChunk.hasRemaining()) {
+        dispatchCurrentChunk();
+      }
+    }
+  }
+
+}
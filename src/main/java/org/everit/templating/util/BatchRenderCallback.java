@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Provides the item specific parts of the renderings of a {@link BatchRenderer}. The methods are
+ * called concurrently from the threads of the executor of the batch, but the methods of one item
+ * are called on the same thread.
+ *
+ * @param <I>
+ *          The type of the items.
+ */
+public interface BatchRenderCallback<I> {
+
+  /**
+   * Called after the output of an item was rendered successfully.
+   *
+   * @param item
+   *          The item.
+   * @param writer
+   *          The writer that was returned by {@link #openWriter(Object)}. The callback is
+   *          responsible to close it.
+   * @throws IOException
+   *           if the output cannot be finished. The item is counted as failed.
+   */
+  void completed(I item, Writer writer) throws IOException;
+
+  /**
+   * Called when the rendering of an item failed.
+   *
+   * @param item
+   *          The item.
+   * @param writer
+   *          The writer that was returned by {@link #openWriter(Object)} or <code>null</code> if
+   *          the failure happened before the writer was opened. The callback is responsible to
+   *          close it. The writer might be closed already if
+   *          {@link #completed(Object, Writer)} failed.
+   * @param cause
+   *          The reason of the failure.
+   */
+  void failed(I item, Writer writer, Throwable cause);
+
+  /**
+   * Creates the writer that receives the output of an item.
+   *
+   * @param item
+   *          The item.
+   * @return The writer of the item.
+   * @throws IOException
+   *           if the writer cannot be created.
+   */
+  Writer openWriter(I item) throws IOException;
+
+  /**
+   * Puts the item specific variables into the variable scope of the item. The variables that are
+   * shared by all items of the batch are available via the parent of the scope.
+   *
+   * @param item
+   *          The item.
+   * @param vars
+   *          The variable scope of the item.
+   */
+  void populateVars(I item, Map<String, Object> vars);
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The result of rendering a batch via {@link BatchRenderer}.
+ */
+public class BatchRenderStatistics {
+
+  private final long elapsedNanos;
+
+  private final long failedCount;
+
+  private final long succeededCount;
+
+  /**
+   * Constructor.
+   *
+   * @param succeededCount
+   *          The number of items that were rendered successfully.
+   * @param failedCount
+   *          The number of items whose rendering failed.
+   * @param elapsedNanos
+   *          The time of rendering the batch in nanoseconds.
+   */
+  public BatchRenderStatistics(final long succeededCount, final long failedCount,
+      final long elapsedNanos) {
+    this.succeededCount = succeededCount;
+    this.failedCount = failedCount;
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  public long getElapsedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+  }
+
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  public long getFailedCount() {
+    return failedCount;
+  }
+
+  public long getItemCount() {
+    return succeededCount + failedCount;
+  }
+
+  /**
+   * Returns the throughput of the batch.
+   *
+   * @return The number of processed items per second.
+   */
+  public double getItemsPerSecond() {
+    if (elapsedNanos <= 0) {
+      return 0;
+    }
+    return getItemCount() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+  }
+
+  public long getSucceededCount() {
+    return succeededCount;
+  }
+
+  @Override
+  public String toString() {
+    return "BatchRenderStatistics [succeededCount=" + succeededCount + ", failedCount="
+        + failedCount + ", elapsedMillis=" + getElapsedMillis() + ", itemsPerSecond="
+        + getItemsPerSecond() + "]";
+  }
+}
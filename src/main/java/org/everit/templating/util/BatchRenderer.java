@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.everit.templating.CompiledTemplate;
+
+/**
+ * Renders the same template for many items concurrently, like the personalized mails of a
+ * campaign. The variables that are common for all items are copied once into an
+ * {@link ImmutableScope} that is shared by the renderings. Every item gets its own
+ * {@link InheritantMap} on top of the shared scope and its own writer. The number of items that
+ * are rendered at the same time is limited, so the items can come from a lazy source.
+ */
+public class BatchRenderer {
+
+  private final Executor executor;
+
+  private final String fragmentId;
+
+  private final int maxConcurrentItems;
+
+  private final ImmutableScope<String, Object> sharedScope;
+
+  private final CompiledTemplate template;
+
+  /**
+   * Constructor.
+   *
+   * @param template
+   *          The template that is rendered for every item.
+   * @param fragmentId
+   *          The id of the fragment that is rendered or <code>null</code> to render the whole
+   *          template.
+   * @param sharedVars
+   *          The variables that are the same for every item. The map is copied when the renderer
+   *          is created.
+   * @param executor
+   *          The executor that renders the items.
+   * @param maxConcurrentItems
+   *          The maximum number of items that are passed to the executor and not finished yet.
+   */
+  public BatchRenderer(final CompiledTemplate template, final String fragmentId,
+      final Map<String, Object> sharedVars, final Executor executor,
+      final int maxConcurrentItems) {
+    if (maxConcurrentItems <= 0) {
+      throw new IllegalArgumentException("Maximum number of concurrent items must be positive: "
+          + maxConcurrentItems);
+    }
+    this.template = template;
+    this.fragmentId = fragmentId;
+    this.sharedScope = new ImmutableScope<String, Object>(sharedVars);
+    this.executor = executor;
+    this.maxConcurrentItems = maxConcurrentItems;
+  }
+
+  /**
+   * Renders the template for every item. The call returns when all items are processed. The
+   * failures of the items are passed to
+   * {@link BatchRenderCallback#failed(Object, Writer, Throwable)} and do not stop the batch. In
+   * case of an {@link Error}, the callback is notified and the error is thrown further on the
+   * thread of the executor.
+   *
+   * @param items
+   *          The items of the batch.
+   * @param callback
+   *          The callback that provides the item specific variables and writers.
+   * @param <I>
+   *          The type of the items.
+   * @return The statistics of the batch.
+   * @throws RenderAbortedException
+   *           if the calling thread is interrupted. The items that were already passed to the
+   *           executor are not waited for.
+   */
+  public <I> BatchRenderStatistics render(final Iterable<I> items,
+      final BatchRenderCallback<I> callback) {
+    long startTime = System.nanoTime();
+    final AtomicLong succeededCount = new AtomicLong();
+    final AtomicLong failedCount = new AtomicLong();
+    final Semaphore semaphore = new Semaphore(maxConcurrentItems);
+
+    try {
+      for (final I item : items) {
+        semaphore.acquire();
+        Runnable task = new Runnable() {
+          @Override
+          public void run() {
+            boolean succeeded = false;
+            try {
+              succeeded = renderItem(item, callback);
+            } finally {
+              if (succeeded) {
+                succeededCount.incrementAndGet();
+              } else {
+                failedCount.incrementAndGet();
+              }
+              semaphore.release();
+            }
+          }
+        };
+        try {
+          executor.execute(task);
+        } catch (RejectedExecutionException e) {
+          semaphore.release();
+          failedCount.incrementAndGet();
+          callback.failed(item, null, e);
+        }
+      }
+      semaphore.acquire(maxConcurrentItems);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RenderAbortedException("Interrupted while rendering the batch");
+    }
+
+    return new BatchRenderStatistics(succeededCount.get(), failedCount.get(),
+        System.nanoTime() - startTime);
+  }
+
+  private <I> boolean renderItem(final I item, final BatchRenderCallback<I> callback) {
+    Writer writer = null;
+    try {
+      InheritantMap<String, Object> vars = new InheritantMap<String, Object>(sharedScope, false);
+      callback.populateVars(item, vars);
+      writer = callback.openWriter(item);
+      template.render(writer, vars, fragmentId);
+      callback.completed(item, writer);
+      return true;
+    } catch (Exception e) {
+      callback.failed(item, writer, e);
+      return false;
+    } catch (Error e) {
+      callback.failed(item, writer, e);
+      throw e;
+    }
+  }
+}
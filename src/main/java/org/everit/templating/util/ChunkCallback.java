@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+/**
+ * Callback that a {@link ChunkSink} notifies when the writing of a chunk is finished. The methods
+ * can be called from any thread.
+ */
+public interface ChunkCallback {
+
+  /**
+   * The chunk was written fully.
+   */
+  void completed();
+
+  /**
+   * Writing the chunk failed. The writer that passed the chunk will throw an exception on its next
+   * operation.
+   *
+   * @param cause
+   *          The reason of the failure.
+   */
+  void failed(Throwable cause);
+}
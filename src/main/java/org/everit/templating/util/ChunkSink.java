@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Asynchronous target of the encoded output chunks of {@link AsyncChunkWriter}. An implementation
+ * can be an adapter around an asynchronous channel or a callback based network API.
+ */
+public interface ChunkSink {
+
+  /**
+   * Called after all chunks were written successfully, when the writer is closed.
+   */
+  void close();
+
+  /**
+   * Starts writing a chunk. The method should return without waiting for the write to finish. The
+   * content of the chunk must not be modified and the chunk must not be used after the callback
+   * was notified, as the buffer is reused for the upcoming output.
+   *
+   * @param chunk
+   *          The bytes to write between the position and the limit of the buffer.
+   * @param callback
+   *          The callback that must be notified exactly once when the write operation finished.
+   */
+  void write(ByteBuffer chunk, ChunkCallback callback);
+}
@@ -15,6 +15,11 @@
  */
 package org.everit.templating.util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.CharBuffer;
+
 /**
  * Standard exception thrown for all general compileShared and some runtime failures.
  */
@@ -23,12 +28,35 @@ public class CompileException extends RuntimeException {
   /**
    * .
    */
-  private static final long serialVersionUID = 1248035313147803625L;
+  private static final long serialVersionUID = -2570283155421934190L;
 
   private static final int SHOWN_TEXT_AFTER_EXCEPTION_POSITION = 30;
 
   private static final int SHOWN_TEXT_BEFORE_EXCEPTION_POSITION = 20;
 
+  /**
+   * Creates an exception that references the source of the template instead of a copy of it. This
+   * is a factory method instead of a constructor, so calling the constructors with a
+   * <code>null</code> expression stays unambiguous.
+   *
+   * @param message
+   *          The message of the exception.
+   * @param source
+   *          The source of the template, like a {@link MappedTemplateSource}. The source is
+   *          referenced by the exception, not copied.
+   * @param cursor
+   *          The place of the exception within the source.
+   * @param cause
+   *          The original cause of the exception or <code>null</code>.
+   * @return The new exception.
+   */
+  public static CompileException fromSource(final String message, final CharSequence source,
+      final int cursor, final Throwable cause) {
+    CompileException result = new CompileException(message, null, cursor, cause);
+    result.setSource(source);
+    return result;
+  }
+
   private static boolean isWhitespace(final char c) {
     return c <= '\u0020';
   }
@@ -45,12 +73,39 @@ public class CompileException extends RuntimeException {
 
   private int cursor = 0;
 
-  private char[] expr;
+  /**
+   * The source of the template. The exception does not copy the source, only references it.
+   */
+  private transient CharSequence source;
+
+  /**
+   * The position of the first character of {@link #source} within the whole source of the
+   * template. Not zero only if the exception was deserialized, as only the part of the source near
+   * the error is serialized.
+   */
+  private transient int sourceOffset = 0;
 
   private int lineNumber = 1;
 
+  /**
+   * The message that was generated by {@link #generateErrorMessage()} or <code>null</code> if it
+   * has to be generated again.
+   */
+  private transient String message;
+
   private int msgOffset = 0;
 
+  /**
+   * Whether the line number and column were calculated from the source and the cursor.
+   */
+  private boolean positionCalculated = false;
+
+  /**
+   * Whether the line number or column was set via {@link #setLineNumber(int)} or
+   * {@link #setColumn(int)}. In that case the position is not calculated from the source.
+   */
+  private boolean positionSetExplicitly = false;
+
   /**
    * Constructor.
    *
@@ -63,7 +118,7 @@ public class CompileException extends RuntimeException {
    */
   public CompileException(final String message, final char[] expr, final int cursor) {
     super(message);
-    this.expr = expr;
+    setExpr(expr);
     this.cursor = cursor;
   }
 
@@ -82,24 +137,25 @@ public class CompileException extends RuntimeException {
   public CompileException(final String message, final char[] expr, final int cursor,
       final Throwable e) {
     super(message, e);
-    this.expr = expr;
+    setExpr(expr);
     this.cursor = cursor;
   }
 
   private void calcRowAndColumn() {
-    if (lineNumber > 1 || column > 1) {
+    if (positionCalculated || positionSetExplicitly) {
       return;
     }
+    positionCalculated = true;
 
     int row = 1;
     int col = 1;
 
-    if ((lineNumber != 0 && column != 0) || expr == null || expr.length == 0) {
+    if (source == null || source.length() == 0) {
       return;
     }
 
-    for (int i = 0; i < cursor && i < expr.length; i++) {
-      switch (expr[i]) {
+    for (int i = 0, n = Math.min(cursor, source.length()); i < n; i++) {
+      switch (source.charAt(i)) {
         case '\r':
           continue;
         case '\n':
@@ -145,24 +201,20 @@ public class CompileException extends RuntimeException {
     return cs;
   }
 
-  private String calculateMatch(final char[] expr, final int matchStart) {
-    String match;
-    match = new String(expr, matchStart, expr.length - matchStart);
-    Makematch: for (int i = 0; i < match.length(); i++) {
-      char charAt = match.charAt(i);
-      if (charAt == '\n' || charAt == ')') {
-        match = match.substring(0, i);
-        break Makematch;
-      }
-    }
-
-    if (match.length() >= SHOWN_TEXT_AFTER_EXCEPTION_POSITION) {
-      match = match.substring(0, SHOWN_TEXT_AFTER_EXCEPTION_POSITION);
+  private String calculateMatch(final CharSequence expr, final int matchStart) {
+    // Only the shown part of the source is read, so large sources are not copied
+    int maxEnd = Math.min(expr.length(), matchStart + SHOWN_TEXT_AFTER_EXCEPTION_POSITION);
+    int matchEnd = matchStart;
+    while (matchEnd < maxEnd && expr.charAt(matchEnd) != '\n' && expr.charAt(matchEnd) != ')') {
+      matchEnd++;
     }
-    return match;
+    return expr.subSequence(matchStart, matchEnd).toString();
   }
 
   private String generateErrorMessage() {
+    if (message != null) {
+      return message;
+    }
     StringBuilder appender = new StringBuilder().append("[Error: " + super.getMessage() + "]\n");
 
     int offset = appender.length();
@@ -171,7 +223,7 @@ public class CompileException extends RuntimeException {
 
     offset = appender.length() - offset;
 
-    appender.append(showCodeNearError(expr, cursor))
+    appender.append(showCodeNearError(source, cursor - sourceOffset))
         .append(" ....}]\n")
         .append(repeatChar(' ', offset));
 
@@ -187,14 +239,22 @@ public class CompileException extends RuntimeException {
       appender.append('\n')
           .append("[Line: " + lineNumber + ", Column: " + (column) + "]");
     }
-    return appender.toString();
+    message = appender.toString();
+    return message;
   }
 
   public CharSequence getCodeNearError() {
-    return showCodeNearError(expr, cursor);
+    return showCodeNearError(source, cursor - sourceOffset);
   }
 
+  /**
+   * Returns the column of the cursor. The column is calculated from the source at the first call
+   * unless it was set explicitly.
+   *
+   * @return The column of the cursor.
+   */
   public int getColumn() {
+    calcRowAndColumn();
     return column;
   }
 
@@ -206,14 +266,45 @@ public class CompileException extends RuntimeException {
     return this.msgOffset;
   }
 
+  /**
+   * Returns a copy of the source of the template. The whole source is copied into the heap, so for
+   * large sources like a {@link MappedTemplateSource}, {@link #getSource()} or
+   * {@link #getCodeNearError()} should be used instead.
+   *
+   * @return The copy of the source.
+   */
   public char[] getExpr() {
-    return expr.clone();
+    if (source == null) {
+      return null;
+    }
+    char[] result = new char[source.length()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = source.charAt(i);
+    }
+    return result;
   }
 
+  /**
+   * Returns the line number of the cursor. The line number is calculated from the source at the
+   * first call unless it was set explicitly.
+   *
+   * @return The line number of the cursor.
+   */
   public int getLineNumber() {
+    calcRowAndColumn();
     return lineNumber;
   }
 
+  /**
+   * Returns the source of the template. In case the exception was deserialized, only the part of
+   * the source near the error is available.
+   *
+   * @return The source or <code>null</code> if it is not known.
+   */
+  public CharSequence getSource() {
+    return source;
+  }
+
   @Override
   public String getMessage() {
     return generateErrorMessage();
@@ -233,23 +324,68 @@ public class CompileException extends RuntimeException {
     }
   }
 
+  /**
+   * Drops the cached message and the calculated position after the source or the cursor changed.
+   */
+  private void invalidateCalculatedValues() {
+    message = null;
+    if (positionCalculated) {
+      positionCalculated = false;
+      lineNumber = 1;
+      column = 0;
+    }
+  }
+
+  private void readObject(final ObjectInputStream in) throws IOException,
+      ClassNotFoundException {
+    in.defaultReadObject();
+    sourceOffset = in.readInt();
+    source = (String) in.readObject();
+    message = (String) in.readObject();
+    // The position was calculated from the whole source that is not available anymore
+    positionSetExplicitly = true;
+  }
+
   public void setColumn(final int column) {
     this.column = column;
+    positionSetExplicitly = true;
+    message = null;
   }
 
   public void setCursor(final int cursor) {
     this.cursor = cursor;
+    invalidateCalculatedValues();
   }
 
+  /**
+   * Sets the source of the template. The array is wrapped, not copied.
+   *
+   * @param expr
+   *          The source of the template.
+   */
   public void setExpr(final char[] expr) {
-    this.expr = expr;
+    if (expr == null) {
+      this.source = null;
+    } else {
+      this.source = CharBuffer.wrap(expr);
+    }
+    sourceOffset = 0;
+    invalidateCalculatedValues();
   }
 
   public void setLineNumber(final int lineNumber) {
     this.lineNumber = lineNumber;
+    positionSetExplicitly = true;
+    message = null;
+  }
+
+  public void setSource(final CharSequence source) {
+    this.source = source;
+    sourceOffset = 0;
+    invalidateCalculatedValues();
   }
 
-  private CharSequence showCodeNearError(final char[] expr, final int cursor) {
+  private CharSequence showCodeNearError(final CharSequence expr, final int cursor) {
     if (expr == null) {
       return "Unknown";
     }
@@ -257,8 +393,8 @@ public class CompileException extends RuntimeException {
     int start = cursor - SHOWN_TEXT_BEFORE_EXCEPTION_POSITION;
     int end = (cursor + SHOWN_TEXT_AFTER_EXCEPTION_POSITION);
 
-    if (end > expr.length) {
-      end = expr.length;
+    if (end > expr.length()) {
+      end = expr.length();
       start -= SHOWN_TEXT_AFTER_EXCEPTION_POSITION;
     }
 
@@ -268,7 +404,7 @@ public class CompileException extends RuntimeException {
 
     String cs;
 
-    cs = String.copyValueOf(expr, start, end - start);
+    cs = expr.subSequence(start, end).toString();
 
     int matchStart = -1;
     int matchOffset = 0;
@@ -276,7 +412,7 @@ public class CompileException extends RuntimeException {
 
     if (cursor < end) {
       matchStart = cursor;
-      while (matchStart > 0 && !isWhitespace(expr[matchStart - 1])) {
+      while (matchStart > 0 && !isWhitespace(expr.charAt(matchStart - 1))) {
         matchStart--;
       }
 
@@ -298,4 +434,29 @@ public class CompileException extends RuntimeException {
   public String toString() {
     return generateErrorMessage();
   }
+
+  /**
+   * Writes only the part of the source that is shown near the error, so large sources are not
+   * copied. The message and the position are calculated before, as they need the whole source.
+   */
+  private void writeObject(final ObjectOutputStream out) throws IOException {
+    String calculatedMessage = generateErrorMessage();
+    int windowStart = 0;
+    String window = null;
+    if (source != null) {
+      int length = source.length();
+      int localCursor = cursor - sourceOffset;
+      // The shown part can start earlier than the usual position if the error is near the end
+      int maxShownBefore = SHOWN_TEXT_BEFORE_EXCEPTION_POSITION
+          + SHOWN_TEXT_AFTER_EXCEPTION_POSITION;
+      windowStart = Math.min(length, Math.max(0, localCursor - maxShownBefore));
+      int windowEnd = Math.min(length,
+          Math.max(windowStart, localCursor + SHOWN_TEXT_AFTER_EXCEPTION_POSITION));
+      window = source.subSequence(windowStart, windowEnd).toString();
+    }
+    out.defaultWriteObject();
+    out.writeInt(sourceOffset + windowStart);
+    out.writeObject(window);
+    out.writeObject(calculatedMessage);
+  }
 }
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe cache of compiled templates. The least recently used templates are evicted when the
+ * total weight of the cached templates exceeds the maximum weight. In case several threads request
+ * the same template that is not in the cache, the template is compiled only once and all threads
+ * get the same result. The version of the template source is checked periodically and the
+ * template is compiled again if the source changed.
+ *
+ * @param <K>
+ *          The type of the key that identifies the source of a template.
+ * @param <T>
+ *          The type of the compiled template.
+ */
+public class CompiledTemplateCache<K, T> {
+
+  /**
+   * A compiled template with the information that is necessary for eviction and reload detection.
+   *
+   * @param <T>
+   *          The type of the compiled template.
+   */
+  private static final class CacheEntry<T> {
+
+    /**
+     * The time in nanoseconds when the version of the source was checked last time.
+     */
+    private volatile long lastVersionCheck;
+
+    private final T value;
+
+    private final Object version;
+
+    private final long weight;
+
+    CacheEntry(final T value, final Object version, final long weight) {
+      this.value = value;
+      this.version = version;
+      this.weight = weight;
+      this.lastVersionCheck = System.nanoTime();
+    }
+  }
+
+  private static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final AtomicLong compileCount = new AtomicLong();
+
+  private final AtomicLong compileFailureCount = new AtomicLong();
+
+  /**
+   * The compilations that are in progress. Guarded by {@link #entries}.
+   */
+  private final Map<K, FutureTask<CacheEntry<T>>> compilations =
+      new HashMap<K, FutureTask<CacheEntry<T>>>();
+
+  private final TemplateCompiler<K, T> compiler;
+
+  /**
+   * The cached templates in access order. All access to the map and to {@link #totalWeight} is
+   * synchronized on this instance.
+   */
+  private final LinkedHashMap<K, CacheEntry<T>> entries =
+      new LinkedHashMap<K, CacheEntry<T>>(INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, true);
+
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  private final AtomicLong hitCount = new AtomicLong();
+
+  private final long maxWeight;
+
+  private final AtomicLong missCount = new AtomicLong();
+
+  private final AtomicLong reloadCount = new AtomicLong();
+
+  private long totalWeight = 0;
+
+  private final long versionCheckInterval;
+
+  /**
+   * Constructor.
+   *
+   * @param compiler
+   *          The compiler of the templates.
+   * @param maxWeight
+   *          The maximum total weight of the cached templates. See
+   *          {@link TemplateCompiler#weigh(Object, Object)}.
+   * @param versionCheckIntervalMillis
+   *          The minimum time between two checks of the version of the same template source in
+   *          milliseconds. Zero means that the version is checked every time the template is
+   *          requested, a negative value means that the version is never checked.
+   */
+  public CompiledTemplateCache(final TemplateCompiler<K, T> compiler, final long maxWeight,
+      final long versionCheckIntervalMillis) {
+    this.compiler = compiler;
+    this.maxWeight = maxWeight;
+    if (versionCheckIntervalMillis < 0) {
+      this.versionCheckInterval = -1;
+    } else {
+      this.versionCheckInterval = TimeUnit.MILLISECONDS.toNanos(versionCheckIntervalMillis);
+    }
+  }
+
+  private CacheEntry<T> awaitCompilation(final FutureTask<CacheEntry<T>> compilation) {
+    try {
+      return compilation.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CompileException("Interrupted while waiting for the compilation of the template",
+          null, 0, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new CompileException("Compiling template failed", null, 0, cause);
+    }
+  }
+
+  private CacheEntry<T> compile(final K key) {
+    compileCount.incrementAndGet();
+    try {
+      Object version = compiler.getVersion(key);
+      T compiledTemplate = compiler.compile(key);
+      return new CacheEntry<T>(compiledTemplate, version, compiler.weigh(key, compiledTemplate));
+    } catch (RuntimeException e) {
+      compileFailureCount.incrementAndGet();
+      throw e;
+    } catch (Error e) {
+      compileFailureCount.incrementAndGet();
+      throw e;
+    } catch (Exception e) {
+      compileFailureCount.incrementAndGet();
+      throw new CompileException("Compiling template failed: " + key, null, 0, e);
+    }
+  }
+
+  private void evict() {
+    Iterator<CacheEntry<T>> iterator = entries.values().iterator();
+    // The most recently added entry is kept even if it is heavier than the maximum weight.
+    while (totalWeight > maxWeight && entries.size() > 1) {
+      CacheEntry<T> eldest = iterator.next();
+      iterator.remove();
+      totalWeight -= eldest.weight;
+      evictionCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns a compiled template from the cache. In case the template is not in the cache or the
+   * source of the template changed, the template is compiled.
+   *
+   * @param key
+   *          The key of the template.
+   * @return The compiled template.
+   * @throws CompileException
+   *           if the template cannot be compiled.
+   */
+  public T get(final K key) {
+    CacheEntry<T> entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+
+    if (entry == null) {
+      missCount.incrementAndGet();
+    } else if (isUpToDate(key, entry)) {
+      hitCount.incrementAndGet();
+      return entry.value;
+    } else {
+      reloadCount.incrementAndGet();
+    }
+
+    FutureTask<CacheEntry<T>> compilation;
+    boolean owner = false;
+    synchronized (entries) {
+      CacheEntry<T> currentEntry = entries.get(key);
+      if (currentEntry != null && currentEntry != entry) {
+        // Another thread compiled the template in the meantime.
+        return currentEntry.value;
+      }
+      compilation = compilations.get(key);
+      if (compilation == null) {
+        compilation = new FutureTask<CacheEntry<T>>(new Callable<CacheEntry<T>>() {
+          @Override
+          public CacheEntry<T> call() {
+            return compile(key);
+          }
+        });
+        compilations.put(key, compilation);
+        owner = true;
+      }
+    }
+
+    if (owner) {
+      compilation.run();
+      synchronized (entries) {
+        compilations.remove(key);
+        try {
+          store(key, compilation.get());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+          // Failures are not cached, they are thrown by awaitCompilation
+          CacheEntry<T> staleEntry = entries.get(key);
+          if (staleEntry != null && staleEntry == entry) {
+            entries.remove(key);
+            totalWeight -= staleEntry.weight;
+          }
+        }
+      }
+    }
+    return awaitCompilation(compilation).value;
+  }
+
+  public long getCompileCount() {
+    return compileCount.get();
+  }
+
+  public long getCompileFailureCount() {
+    return compileFailureCount.get();
+  }
+
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  public long getReloadCount() {
+    return reloadCount.get();
+  }
+
+  /**
+   * Returns the total weight of the cached templates.
+   *
+   * @return The sum of the weights of the cached templates.
+   */
+  public long getTotalWeight() {
+    synchronized (entries) {
+      return totalWeight;
+    }
+  }
+
+  /**
+   * Removes a template from the cache.
+   *
+   * @param key
+   *          The key of the template.
+   */
+  public void invalidate(final K key) {
+    synchronized (entries) {
+      CacheEntry<T> entry = entries.remove(key);
+      if (entry != null) {
+        totalWeight -= entry.weight;
+      }
+    }
+  }
+
+  /**
+   * Removes all templates from the cache.
+   */
+  public void invalidateAll() {
+    synchronized (entries) {
+      entries.clear();
+      totalWeight = 0;
+    }
+  }
+
+  private boolean isUpToDate(final K key, final CacheEntry<T> entry) {
+    if (versionCheckInterval < 0 || entry.version == null) {
+      return true;
+    }
+    long now = System.nanoTime();
+    if (now - entry.lastVersionCheck < versionCheckInterval) {
+      return true;
+    }
+    // Other threads do not check the version until this check is finished
+    entry.lastVersionCheck = now;
+    return entry.version.equals(compiler.getVersion(key));
+  }
+
+  /**
+   * Returns the number of cached templates.
+   *
+   * @return The number of cached templates.
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  private void store(final K key, final CacheEntry<T> entry) {
+    CacheEntry<T> previousEntry = entries.put(key, entry);
+    if (previousEntry != null) {
+      totalWeight -= previousEntry.weight;
+    }
+    totalWeight += entry.weight;
+    evict();
+  }
+
+}
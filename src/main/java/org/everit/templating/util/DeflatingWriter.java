@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writer that encodes and compresses the output in one pass and writes the compressed bytes to an
+ * {@link OutputStream}. The output is in deflate (RFC 1951) or gzip (RFC 1952) format. The encoding
+ * and the compression buffers are allocated once and reused for the whole output, so no
+ * additional buffering layer is necessary between the template and the response stream.
+ *
+ * <p>
+ * The static parts of templates can be encoded once and written via
+ * {@link #writeEncoded(byte[], int, int)}, so only the compression is done for them during the
+ * rendering. Instances are not thread-safe.
+ */
+public class DeflatingWriter extends AbstractEncodingWriter {
+
+  private static final int BYTE_MASK = 0xff;
+
+  private static final int GZIP_HEADER_SIZE = 10;
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+
+  private static final int GZIP_OS_UNKNOWN = 0xff;
+
+  private static final int INT_BYTE_COUNT = 4;
+
+  private final byte[] compressedBuffer;
+
+  private long compressedLength = 0;
+
+  /**
+   * The checksum of the uncompressed bytes in case of gzip format, otherwise <code>null</code>.
+   */
+  private final CRC32 crc;
+
+  private final Deflater deflater;
+
+  private boolean headerWritten = false;
+
+  private final int level;
+
+  private final OutputStream out;
+
+  /**
+   * Whether {@link #flush()} should push all of the pending compressed data to the stream.
+   */
+  private final boolean syncFlush;
+
+  private long uncompressedLength = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param out
+   *          The stream that the compressed bytes are written to.
+   * @param charset
+   *          The charset that is used to encode the output.
+   * @param bufferSize
+   *          The size of the encoding and the compression buffers.
+   * @param level
+   *          The compression level between 0 and 9 or {@link Deflater#DEFAULT_COMPRESSION}.
+   * @param gzip
+   *          In case of true, the output is in gzip format, otherwise in raw deflate format.
+   * @param syncFlush
+   *          In case of true, {@link #flush()} compresses all of the written text and writes it to
+   *          the stream, so a client can process the output that was rendered so far. This
+   *          makes the compression ratio worse if the writer is flushed often. In case of false,
+   *          only the already compressed bytes are written to the stream when the writer is
+   *          flushed.
+   */
+  public DeflatingWriter(final OutputStream out, final Charset charset, final int bufferSize,
+      final int level, final boolean gzip, final boolean syncFlush) {
+    super(charset, bufferSize);
+    if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+        && level != Deflater.DEFAULT_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    this.out = out;
+    this.level = level;
+    this.syncFlush = syncFlush;
+    this.deflater = new Deflater(level, true);
+    this.crc = gzip ? new CRC32() : null;
+    this.compressedBuffer = new byte[Math.max(GZIP_HEADER_SIZE, bufferSize)];
+  }
+
+  @Override
+  protected void closeBytes() throws IOException {
+    try {
+      writeHeaderIfNecessary();
+      deflater.finish();
+      while (!deflater.finished()) {
+        deflateToStream();
+      }
+      if (crc != null) {
+        int length = 0;
+        length = putInt(length, (int) crc.getValue());
+        // The length of the input is stored modulo 2^32
+        length = putInt(length, (int) uncompressedLength);
+        writeCompressed(length);
+      }
+    } finally {
+      deflater.end();
+    }
+    out.close();
+  }
+
+  private void deflate(final byte[] bytes, final int off, final int len) throws IOException {
+    writeHeaderIfNecessary();
+    if (crc != null) {
+      crc.update(bytes, off, len);
+    }
+    uncompressedLength += len;
+    deflater.setInput(bytes, off, len);
+    while (!deflater.needsInput()) {
+      deflateToStream();
+    }
+  }
+
+  /**
+   * Writes all of the data to the stream that the deflater can produce without additional input.
+   */
+  private void deflateAvailable() throws IOException {
+    while (deflateToStream() > 0) {
+      // Nothing to do, the loop goes on until there is no more output
+    }
+  }
+
+  private int deflateToStream() throws IOException {
+    int length = deflater.deflate(compressedBuffer, 0, compressedBuffer.length);
+    writeCompressed(length);
+    return length;
+  }
+
+  /**
+   * In case of sync flush, compresses all of the written text and writes it to the stream. The
+   * deflater of Java 6 does not support flush modes, so the pending data is completed by changing
+   * the compression level, as changing the level forces the deflater to finish the current block.
+   * The temporary level must differ from the configured one, otherwise nothing is finished.
+   */
+  @Override
+  protected void flushBytes() throws IOException {
+    if (syncFlush && uncompressedLength > 0) {
+      int temporaryLevel = level == Deflater.NO_COMPRESSION ? Deflater.BEST_SPEED
+          : Deflater.NO_COMPRESSION;
+      deflater.setLevel(temporaryLevel);
+      deflateAvailable();
+      deflater.setLevel(level);
+      deflateAvailable();
+    }
+    out.flush();
+  }
+
+  /**
+   * Returns the number of compressed bytes that were written to the stream, including the gzip
+   * header and trailer.
+   *
+   * @return The number of compressed bytes.
+   */
+  public long getCompressedLength() {
+    return compressedLength;
+  }
+
+  /**
+   * Returns the number of encoded bytes that were compressed. Characters that are still in the
+   * encoding buffer are not counted.
+   *
+   * @return The number of uncompressed bytes.
+   */
+  public long getUncompressedLength() {
+    return uncompressedLength;
+  }
+
+  public boolean isGzip() {
+    return crc != null;
+  }
+
+  private int putInt(final int offset, final int value) {
+    int result = offset;
+    for (int i = 0; i < INT_BYTE_COUNT; i++) {
+      compressedBuffer[result++] = (byte) ((value >>> (Byte.SIZE * i)) & BYTE_MASK);
+    }
+    return result;
+  }
+
+  @Override
+  protected void writeBytes(final ByteBuffer bytes) throws IOException {
+    deflate(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+    bytes.position(bytes.limit());
+  }
+
+  private void writeCompressed(final int length) throws IOException {
+    if (length > 0) {
+      out.write(compressedBuffer, 0, length);
+      compressedLength += length;
+    }
+  }
+
+  /**
+   * Writes bytes that were encoded earlier with the charset of this writer. The characters that
+   * were written before are encoded first, so the order of the output is kept. Static parts of
+   * templates can be encoded once and written by this method to skip their encoding during the
+   * rendering.
+   *
+   * @param bytes
+   *          The array that holds the encoded bytes.
+   * @param off
+   *          The offset of the first byte in the array.
+   * @param len
+   *          The number of bytes to write.
+   * @throws IOException
+   *           if the writer is closed or the bytes cannot be written.
+   */
+  public void writeEncoded(final byte[] bytes, final int off, final int len) throws IOException {
+    encodeBufferedChars();
+    if (len > 0) {
+      deflate(bytes, off, len);
+    }
+  }
+
+  private void writeHeaderIfNecessary() throws IOException {
+    if (headerWritten) {
+      return;
+    }
+    headerWritten = true;
+    if (crc == null) {
+      return;
+    }
+    int length = 0;
+    compressedBuffer[length++] = (byte) (GZIP_MAGIC & BYTE_MASK);
+    compressedBuffer[length++] = (byte) (GZIP_MAGIC >>> Byte.SIZE);
+    compressedBuffer[length++] = Deflater.DEFLATED;
+    // Flags, modification time and extra flags are zero
+    int zeroBytes = 1 + INT_BYTE_COUNT + 1;
+    for (int i = 0; i < zeroBytes; i++) {
+      compressedBuffer[length++] = 0;
+    }
+    compressedBuffer[length++] = (byte) GZIP_OS_UNKNOWN;
+    writeCompressed(length);
+  }
+
+}
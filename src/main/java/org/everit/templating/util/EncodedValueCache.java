@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+/**
+ * Small cache of recently encoded values that is used during one rendering to skip formatting and
+ * escaping the same value instance again. The entries are identified by the identity of the value
+ * and the encoder. The cache is direct-mapped: every value and encoder pair has one slot, and a new
+ * entry replaces the previous entry of the slot, so the memory usage and the cost of a lookup are
+ * constant.
+ *
+ * <p>
+ * Only immutable values (like strings or numbers) should be encoded via the cache, as a changed
+ * state of a mutable value instance is not detected. Instances are not thread-safe.
+ */
+public class EncodedValueCache {
+
+  private static final int GOLDEN_RATIO = 0x9E3779B9;
+
+  private static final int HALF_INT_BITS = 16;
+
+  private final ValueEncoder[] encoders;
+
+  private long hitCount = 0;
+
+  private final int mask;
+
+  private long missCount = 0;
+
+  private final String[] results;
+
+  private final Object[] values;
+
+  /**
+   * Constructor.
+   *
+   * @param size
+   *          The number of slots of the cache. The value is rounded up to the next power of two.
+   */
+  public EncodedValueCache(final int size) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("Size must be positive: " + size);
+    }
+    int capacity = Integer.highestOneBit(size);
+    if (capacity < size) {
+      capacity <<= 1;
+    }
+    this.mask = capacity - 1;
+    this.values = new Object[capacity];
+    this.encoders = new ValueEncoder[capacity];
+    this.results = new String[capacity];
+  }
+
+  /**
+   * Removes all entries from the cache. Should be called at the end of the rendering, so the cache
+   * does not hold references to the values of the model.
+   */
+  public void clear() {
+    for (int i = 0; i < values.length; i++) {
+      values[i] = null;
+      encoders[i] = null;
+      results[i] = null;
+    }
+  }
+
+  /**
+   * Returns the encoded form of a value from the cache or encodes it if it is not in the cache.
+   *
+   * @param value
+   *          The value.
+   * @param encoder
+   *          The encoder.
+   * @return The encoded text.
+   */
+  public String encode(final Object value, final ValueEncoder encoder) {
+    int hash = System.identityHashCode(value) ^ (System.identityHashCode(encoder) * GOLDEN_RATIO);
+    int index = (hash ^ (hash >>> HALF_INT_BITS)) & mask;
+    if (values[index] == value && encoders[index] == encoder && results[index] != null) {
+      hitCount++;
+      return results[index];
+    }
+    missCount++;
+    String result = encoder.encode(value);
+    values[index] = value;
+    encoders[index] = encoder;
+    results[index] = result;
+    return result;
+  }
+
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the ratio of the lookups that were served from the cache.
+   *
+   * @return The hit rate between 0 and 1.
+   */
+  public double getHitRate() {
+    long lookupCount = hitCount + missCount;
+    if (lookupCount == 0) {
+      return 0;
+    }
+    return (double) hitCount / lookupCount;
+  }
+
+  public long getMissCount() {
+    return missCount;
+  }
+}
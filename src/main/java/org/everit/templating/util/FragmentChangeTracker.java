@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records the hash of the output of every fragment during a rendering and tells which fragments
+ * produced a different output than in the previous rendering. The same instance should be passed to
+ * the template context of every rendering of the same page via
+ * {@link AbstractTemplateContext#setFragmentChangeTracker(FragmentChangeTracker)}, and
+ * {@link #finishRender()} should be called at the end of every rendering.
+ *
+ * <p>
+ * In case a fragment is rendered multiple times during one rendering, the hashes of the outputs are
+ * combined in document order, even if the fragments are rendered concurrently. Fragments whose
+ * output is not known at the end of the rendering, because a reserved slot was not recorded, are
+ * considered as changed. The class is thread-safe.
+ */
+public class FragmentChangeTracker {
+
+  /**
+   * The place of a fragment invocation within a rendering, returned by
+   * {@link FragmentChangeTracker#reserveSlot(String)}.
+   */
+  public static final class Slot {
+
+    private final String fragmentId;
+
+    /**
+     * The number of the rendering that the slot belongs to.
+     */
+    private final long generation;
+
+    private final int index;
+
+    private Slot(final String fragmentId, final long generation, final int index) {
+      this.fragmentId = fragmentId;
+      this.generation = generation;
+      this.index = index;
+    }
+
+    public String getFragmentId() {
+      return fragmentId;
+    }
+  }
+
+  private static final int BITS_PER_BYTE = 8;
+
+  private static final int BYTE_MASK = 0xFF;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * Calculates the 64 bit FNV-1a hash of a text.
+   *
+   * @param text
+   *          The text.
+   * @return The hash of the text.
+   */
+  public static long hash(final CharSequence text) {
+    long result = FNV_OFFSET_BASIS;
+    for (int i = 0, n = text.length(); i < n; i++) {
+      char c = text.charAt(i);
+      result ^= c & BYTE_MASK;
+      result *= FNV_PRIME;
+      result ^= c >>> BITS_PER_BYTE;
+      result *= FNV_PRIME;
+    }
+    return result;
+  }
+
+  private Set<String> changedFragmentIds = Collections.emptySet();
+
+  /**
+   * The hashes of the fragment outputs of the current rendering in the order of the fragment
+   * invocations. The value of a slot is <code>null</code> until the fragment is rendered.
+   */
+  private Map<String, List<Long>> currentHashes = new LinkedHashMap<String, List<Long>>();
+
+  /**
+   * The number of the current rendering. Slots of previous renderings are ignored.
+   */
+  private long generation = 0;
+
+  /**
+   * The combined hashes of the fragments of the previous rendering.
+   */
+  private Map<String, Long> previousHashes = new HashMap<String, Long>();
+
+  private long combine(final List<Long> hashes) {
+    long result = FNV_OFFSET_BASIS;
+    for (Long hash : hashes) {
+      result = (result ^ (hash == null ? 0 : hash.longValue())) * FNV_PRIME;
+    }
+    return result;
+  }
+
+  /**
+   * Finishes the current rendering and calculates the ids of the fragments whose output changed
+   * since the previous rendering. Fragments that were rendered in the previous rendering but not in
+   * the current one are also considered as changed, just like the fragments that have a slot that
+   * was not recorded. Slots that were reserved before this call are ignored afterwards.
+   *
+   * @return The ids of the changed fragments in the order they were first rendered.
+   */
+  public synchronized Set<String> finishRender() {
+    Map<String, Long> hashes = new HashMap<String, Long>();
+    Set<String> changed = new LinkedHashSet<String>();
+    for (Map.Entry<String, List<Long>> entry : currentHashes.entrySet()) {
+      String fragmentId = entry.getKey();
+      if (entry.getValue().contains(null)) {
+        // The output is unknown, so the hash is not kept and the next rendering reports a change
+        changed.add(fragmentId);
+        continue;
+      }
+      Long hash = Long.valueOf(combine(entry.getValue()));
+      hashes.put(fragmentId, hash);
+      if (!hash.equals(previousHashes.get(fragmentId))) {
+        changed.add(fragmentId);
+      }
+    }
+    for (String fragmentId : previousHashes.keySet()) {
+      if (!hashes.containsKey(fragmentId)) {
+        changed.add(fragmentId);
+      }
+    }
+
+    previousHashes = hashes;
+    currentHashes = new LinkedHashMap<String, List<Long>>();
+    generation++;
+    changedFragmentIds = Collections.unmodifiableSet(changed);
+    return changedFragmentIds;
+  }
+
+  /**
+   * Returns the result of the last {@link #finishRender()} call.
+   *
+   * @return The ids of the fragments that changed in the last finished rendering.
+   */
+  public synchronized Set<String> getChangedFragmentIds() {
+    return changedFragmentIds;
+  }
+
+  /**
+   * Records the output of a fragment that was rendered synchronously.
+   *
+   * @param fragmentId
+   *          The id of the fragment.
+   * @param output
+   *          The output of the fragment.
+   */
+  public void record(final String fragmentId, final CharSequence output) {
+    record(reserveSlot(fragmentId), output);
+  }
+
+  /**
+   * Records the output of a fragment into a slot that was reserved by
+   * {@link #reserveSlot(String)}. The call is ignored if the rendering of the slot was finished
+   * already.
+   *
+   * @param slot
+   *          The slot of the fragment invocation.
+   * @param output
+   *          The output of the fragment.
+   */
+  public void record(final Slot slot, final CharSequence output) {
+    Long hash = Long.valueOf(hash(output));
+    synchronized (this) {
+      if (slot.generation != generation) {
+        return;
+      }
+      currentHashes.get(slot.fragmentId).set(slot.index, hash);
+    }
+  }
+
+  /**
+   * Reserves the place of a fragment invocation in document order. Should be called on the
+   * rendering thread when a fragment is started, so that the fragment can be rendered on another
+   * thread and recorded later.
+   *
+   * @param fragmentId
+   *          The id of the fragment.
+   * @return The slot of the fragment invocation that should be passed to
+   *         {@link #record(Slot, CharSequence)}. In case the fragment is not rendered, the slot
+   *         does not have to be recorded, the fragment is considered as changed then.
+   */
+  public synchronized Slot reserveSlot(final String fragmentId) {
+    List<Long> hashes = currentHashes.get(fragmentId);
+    if (hashes == null) {
+      hashes = new ArrayList<Long>();
+      currentHashes.put(fragmentId, hashes);
+    }
+    hashes.add(null);
+    return new Slot(fragmentId, generation, hashes.size() - 1);
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Map implementation that holds a frozen copy of key-value pairs. Instances can be shared between
+ * threads without synchronization, so global variables can be put into one instance that is the
+ * root parent of the {@link InheritantMap} chain of every rendering. All modification methods throw
+ * {@link UnsupportedOperationException}. An {@link InheritantMap} that is created with
+ * updateOnParent=true puts the values into its child map instead of an {@link ImmutableScope}
+ * parent.
+ *
+ * @param <K>
+ *          Type of key of the map.
+ * @param <V>
+ *          Type of value of the map.
+ */
+public final class ImmutableScope<K, V> implements Map<K, V> {
+
+  /**
+   * The lowest capacity of the internal map.
+   */
+  private static final int MIN_CAPACITY = 16;
+
+  /**
+   * The copy of the key-value pairs. The map is never modified after the constructor finished.
+   */
+  private final Map<K, V> internalMap;
+
+  /**
+   * Constructor.
+   *
+   * @param source
+   *          The map whose key-value pairs are copied into the new instance.
+   */
+  public ImmutableScope(final Map<? extends K, ? extends V> source) {
+    // Twice the capacity that is necessary to keep hash collisions rare during lookups.
+    Map<K, V> copy = new HashMap<K, V>(Math.max(MIN_CAPACITY, source.size() * 2));
+    copy.putAll(source);
+    this.internalMap = copy;
+  }
+
+  @Override
+  public void clear() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return internalMap.containsKey(key);
+  }
+
+  @Override
+  public boolean containsValue(final Object value) {
+    return internalMap.containsValue(value);
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return Collections.unmodifiableMap(internalMap).entrySet();
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    return internalMap.equals(obj);
+  }
+
+  @Override
+  public V get(final Object key) {
+    return internalMap.get(key);
+  }
+
+  @Override
+  public int hashCode() {
+    return internalMap.hashCode();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return internalMap.isEmpty();
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return Collections.unmodifiableSet(internalMap.keySet());
+  }
+
+  @Override
+  public V put(final K key, final V value) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void putAll(final Map<? extends K, ? extends V> m) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public V remove(final Object key) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public int size() {
+    return internalMap.size();
+  }
+
+  @Override
+  public String toString() {
+    return internalMap.toString();
+  }
+
+  @Override
+  public Collection<V> values() {
+    return Collections.unmodifiableCollection(internalMap.values());
+  }
+}
@@ -36,16 +36,23 @@ public class InheritantMap<K, V> implements Map<K, V> {
   /**
    * The map that holds the newly inserted keys and values.
    */
-  private final Map<K, V> internalMap;
+  private Map<K, V> internalMap;
 
   /**
-   * Parent map.
+   * Parent map. Changed only when the map is recycled by a {@link RenderArena}.
    */
-  private final Map<K, V> parentMap;
+  private Map<K, V> parentMap;
+
+  /**
+   * Whether the internal map is shared with a snapshot. In case of true, the internal map is copied
+   * before the first modification.
+   */
+  private boolean sharedInternalMap = false;
 
   /**
    * In case of true, those keys will be updated on the parent that were already available there,
-   * otherwise every operation will be processed on the child map.
+   * otherwise every operation will be processed on the child map. An {@link ImmutableScope} parent
+   * is never updated.
    */
   private final boolean updateOnParent;
 
@@ -84,7 +91,12 @@ public class InheritantMap<K, V> implements Map<K, V> {
 
   @Override
   public void clear() {
-    internalMap.clear();
+    if (sharedInternalMap) {
+      internalMap = new HashMap<K, V>();
+      sharedInternalMap = false;
+    } else {
+      internalMap.clear();
+    }
   }
 
   @Override
@@ -105,6 +117,13 @@ public class InheritantMap<K, V> implements Map<K, V> {
     return result;
   }
 
+  private void ensureInternalMapNotShared() {
+    if (sharedInternalMap) {
+      internalMap = new HashMap<K, V>(internalMap);
+      sharedInternalMap = false;
+    }
+  }
+
   @Override
   public Set<Entry<K, V>> entrySet() {
     throw new UnsupportedOperationException();
@@ -156,6 +175,20 @@ public class InheritantMap<K, V> implements Map<K, V> {
 
   }
 
+  /**
+   * Returns the map that holds the key-value pairs of this level of the chain. The returned map
+   * must not be modified.
+   *
+   * @return The internal map.
+   */
+  Map<K, V> getInternalMap() {
+    return internalMap;
+  }
+
+  Map<K, V> getParentMap() {
+    return parentMap;
+  }
+
   @Override
   public int hashCode() {
     final int prime = 31;
@@ -165,6 +198,19 @@ public class InheritantMap<K, V> implements Map<K, V> {
     return result;
   }
 
+  /**
+   * Replaces the parent and the internal map of this instance with a map that does not allow any
+   * access. Used by {@link RenderArena} in debug mode to detect the usage of released scopes.
+   *
+   * @param invalidMap
+   *          The map that throws an exception when any of its methods are called.
+   */
+  void invalidate(final Map<K, V> invalidMap) {
+    parentMap = invalidMap;
+    internalMap = invalidMap;
+    sharedInternalMap = false;
+  }
+
   @Override
   public boolean isEmpty() {
     boolean result = internalMap.isEmpty();
@@ -186,9 +232,11 @@ public class InheritantMap<K, V> implements Map<K, V> {
           "'" + TemplateConstants.VAR_TEMPLATE_CONTEXT + "' is a reserved word");
     }
 
-    if (updateOnParent && parentMap != null && parentMap.containsKey(key)) {
+    if (updateOnParent && parentMap != null && !(parentMap instanceof ImmutableScope)
+        && parentMap.containsKey(key)) {
       return parentMap.put(key, value);
     } else {
+      ensureInternalMapNotShared();
       return internalMap.put(key, value);
     }
   }
@@ -210,14 +258,58 @@ public class InheritantMap<K, V> implements Map<K, V> {
    * @return The previous value if existed.
    */
   public V putWithoutChecks(final K key, final V value) {
+    ensureInternalMapNotShared();
     return internalMap.put(key, value);
   }
 
+  /**
+   * Clears this map and sets a new parent, so the instance can be reused. Used by
+   * {@link RenderArena}.
+   *
+   * @param newParentMap
+   *          The new parent of the map.
+   */
+  void recycle(final Map<K, V> newParentMap) {
+    clear();
+    parentMap = newParentMap;
+  }
+
   @Override
   public V remove(final Object key) {
+    if (sharedInternalMap && !internalMap.containsKey(key)) {
+      return null;
+    }
+    ensureInternalMapNotShared();
     return internalMap.remove(key);
   }
 
+  /**
+   * Creates a snapshot of this map that holds the currently available key-value pairs. The later
+   * modifications of this map are not visible via the snapshot and the modifications of the
+   * snapshot are not visible via this map. The content of the maps is not copied: the child maps of
+   * the {@link InheritantMap} levels are shared until one of the sides modifies them. The cost of
+   * the call depends only on the number of {@link InheritantMap} levels in the parent chain.
+   *
+   * <p>
+   * The first ancestor that is not an {@link InheritantMap} is shared by reference, so it should be
+   * an {@link ImmutableScope} or a map that is not modified while the snapshot is in use. The
+   * snapshot must be created on the thread that uses this map, but it can be passed to other
+   * threads afterwards.
+   *
+   * @return The snapshot of this map.
+   */
+  public InheritantMap<K, V> snapshot() {
+    Map<K, V> parentSnapshot = parentMap;
+    if (parentMap instanceof InheritantMap) {
+      parentSnapshot = ((InheritantMap<K, V>) parentMap).snapshot();
+    }
+    sharedInternalMap = true;
+    InheritantMap<K, V> result = new InheritantMap<K, V>(parentSnapshot, internalMap,
+        updateOnParent);
+    result.sharedInternalMap = true;
+    return result;
+  }
+
   @Override
   public int size() {
     throw new UnsupportedOperationException();
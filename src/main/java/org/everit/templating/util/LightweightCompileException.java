@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+/**
+ * {@link CompileException} that does not fill its stack trace. Creating and throwing instances is
+ * cheap, so the class can be used when a large number of templates is validated and the exceptions
+ * are collected as validation results. The source of the template is referenced, not copied, and
+ * the message, the line number and the column are calculated only when they are requested.
+ */
+public class LightweightCompileException extends CompileException {
+
+  /**
+   * .
+   */
+  private static final long serialVersionUID = -5214394626385912273L;
+
+  /**
+   * Constructor.
+   *
+   * @param message
+   *          The message of the exception.
+   * @param source
+   *          The source of the template that is referenced by the exception.
+   * @param cursor
+   *          The place of the exception within the source.
+   */
+  public LightweightCompileException(final String message, final CharSequence source,
+      final int cursor) {
+    super(message, null, cursor);
+    setSource(source);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param message
+   *          The message of the exception.
+   * @param source
+   *          The source of the template that is referenced by the exception.
+   * @param cursor
+   *          The place of the exception within the source.
+   * @param e
+   *          The original cause of the exception.
+   */
+  public LightweightCompileException(final String message, final CharSequence source,
+      final int cursor, final Throwable e) {
+    super(message, null, cursor, e);
+    setSource(source);
+  }
+
+  /**
+   * Does not fill the stack trace as it is the most expensive part of creating an exception.
+   *
+   * @return This exception.
+   */
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    return this;
+  }
+}
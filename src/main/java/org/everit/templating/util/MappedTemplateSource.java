@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Template source that is backed by a memory-mapped file. The content is decoded lazily in pages
+ * and only a few decoded pages are kept in the memory, so the heap usage does not depend on the
+ * size of the file. Sub-sequences are views that do not copy the content. The instances can be
+ * passed to {@link CompileException} to show the code near an error without holding a copy of the
+ * template.
+ *
+ * <p>
+ * In case the charset encodes every character on one byte, the position of a character is known
+ * without decoding. Otherwise the start positions of the pages are indexed while the file is
+ * decoded from the beginning, so the first call of {@link #length()} decodes the whole file once.
+ * Only stateless charsets (like UTF-8 or ISO-8859-x) are supported, as every page is decoded
+ * independently.
+ */
+public class MappedTemplateSource implements CharSequence {
+
+  /**
+   * A view of a range of the source.
+   */
+  private class SourceRange implements CharSequence {
+
+    private final int end;
+
+    private final int start;
+
+    SourceRange(final int start, final int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public char charAt(final int index) {
+      if (index < 0 || index >= end - start) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", length: " + (end - start));
+      }
+      return MappedTemplateSource.this.charAt(start + index);
+    }
+
+    @Override
+    public int length() {
+      return end - start;
+    }
+
+    @Override
+    public CharSequence subSequence(final int subStart, final int subEnd) {
+      checkRange(subStart, subEnd, end - start);
+      return new SourceRange(start + subStart, start + subEnd);
+    }
+
+    @Override
+    public String toString() {
+      return copyRange(start, end);
+    }
+  }
+
+  private static final int CACHED_PAGE_COUNT = 4;
+
+  private static final int DEFAULT_PAGE_SIZE = 4096;
+
+  private static final int MIN_PAGE_SIZE = 2;
+
+  private static void checkRange(final int start, final int end, final int length) {
+    if (start < 0 || end > length || start > end) {
+      throw new IndexOutOfBoundsException("Start: " + start + ", end: " + end + ", length: "
+          + length);
+    }
+  }
+
+  private final ByteBuffer bytes;
+
+  /**
+   * The number of characters in the source or -1 if it is not known yet.
+   */
+  private int charLength = -1;
+
+  private final CharsetDecoder decoder;
+
+  private final boolean fixedWidth;
+
+  /**
+   * The number of pages whose start position is known.
+   */
+  private int indexedPageCount = 1;
+
+  /**
+   * The byte position where the pages start.
+   */
+  private int[] pageByteStarts = new int[] { 0 };
+
+  /**
+   * The most recently used decoded pages.
+   */
+  private final Map<Integer, char[]> pageCache =
+      new LinkedHashMap<Integer, char[]>(CACHED_PAGE_COUNT * 2, 1, true) {
+
+        private static final long serialVersionUID = 6914525011735484532L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Integer, char[]> eldest) {
+          return size() > CACHED_PAGE_COUNT;
+        }
+      };
+
+  /**
+   * The character position where the pages start.
+   */
+  private int[] pageCharStarts = new int[] { 0 };
+
+  private final int pageSize;
+
+  /**
+   * Constructor that uses the default page size.
+   *
+   * @param file
+   *          The template file.
+   * @param charset
+   *          The charset of the template file.
+   * @throws IOException
+   *           if the file cannot be mapped into the memory.
+   */
+  public MappedTemplateSource(final File file, final Charset charset) throws IOException {
+    this(file, charset, DEFAULT_PAGE_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param file
+   *          The template file. The file must not be larger than {@link Integer#MAX_VALUE} bytes.
+   * @param charset
+   *          The charset of the template file.
+   * @param pageSize
+   *          The number of characters that are decoded at once.
+   * @throws IOException
+   *           if the file cannot be mapped into the memory.
+   */
+  public MappedTemplateSource(final File file, final Charset charset, final int pageSize)
+      throws IOException {
+    if (pageSize < MIN_PAGE_SIZE) {
+      throw new IllegalArgumentException("Page size must be at least " + MIN_PAGE_SIZE + ": "
+          + pageSize);
+    }
+    this.pageSize = pageSize;
+    this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.fixedWidth = charset.newEncoder().maxBytesPerChar() == 1.0f
+        && decoder.maxCharsPerByte() == 1.0f;
+
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("File is too large to be used as a template source: " + file);
+      }
+      MappedByteBuffer mappedByteBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      this.bytes = mappedByteBuffer;
+    } finally {
+      randomAccessFile.close();
+    }
+
+    if (fixedWidth) {
+      charLength = bytes.limit();
+    }
+  }
+
+  @Override
+  public synchronized char charAt(final int index) {
+    if (index < 0 || (charLength >= 0 && index >= charLength)) {
+      throw new IndexOutOfBoundsException("Index: " + index);
+    }
+    if (fixedWidth) {
+      char[] page = page(index / pageSize);
+      return page[index % pageSize];
+    }
+
+    int pageIndex = findIndexedPage(index);
+    char[] page = page(pageIndex);
+    while (index >= pageCharStarts[pageIndex] + page.length) {
+      if (pageIndex + 1 >= indexedPageCount) {
+        throw new IndexOutOfBoundsException("Index: " + index);
+      }
+      pageIndex++;
+      page = page(pageIndex);
+    }
+    return page[index - pageCharStarts[pageIndex]];
+  }
+
+  private synchronized String copyRange(final int start, final int end) {
+    StringBuilder sb = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      sb.append(charAt(i));
+    }
+    return sb.toString();
+  }
+
+  private char[] decodePage(final int pageIndex) {
+    ByteBuffer in = bytes.duplicate();
+    CharBuffer out = CharBuffer.allocate(pageSize);
+    if (fixedWidth) {
+      int byteStart = pageIndex * pageSize;
+      in.position(byteStart);
+      in.limit(Math.min(bytes.limit(), byteStart + pageSize));
+    } else {
+      in.position(pageByteStarts[pageIndex]);
+    }
+
+    decoder.reset();
+    CoderResult coderResult = decoder.decode(in, out, true);
+    if (coderResult.isUnderflow()) {
+      decoder.flush(out);
+    }
+    out.flip();
+    char[] result = new char[out.remaining()];
+    out.get(result);
+
+    if (!fixedWidth && pageIndex == indexedPageCount - 1) {
+      int nextCharStart = pageCharStarts[pageIndex] + result.length;
+      if (in.hasRemaining()) {
+        if (indexedPageCount == pageByteStarts.length) {
+          pageByteStarts = Arrays.copyOf(pageByteStarts, indexedPageCount * 2);
+          pageCharStarts = Arrays.copyOf(pageCharStarts, indexedPageCount * 2);
+        }
+        pageByteStarts[indexedPageCount] = in.position();
+        pageCharStarts[indexedPageCount] = nextCharStart;
+        indexedPageCount++;
+      } else {
+        charLength = nextCharStart;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Finds the last indexed page that starts before or at the specified character position.
+   */
+  private int findIndexedPage(final int index) {
+    int result = Arrays.binarySearch(pageCharStarts, 0, indexedPageCount, index);
+    if (result < 0) {
+      result = -result - 2;
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized int length() {
+    while (charLength < 0) {
+      page(indexedPageCount - 1);
+    }
+    return charLength;
+  }
+
+  private char[] page(final int pageIndex) {
+    Integer key = Integer.valueOf(pageIndex);
+    char[] result = pageCache.get(key);
+    if (result == null) {
+      result = decodePage(pageIndex);
+      pageCache.put(key, result);
+    }
+    return result;
+  }
+
+  @Override
+  public CharSequence subSequence(final int start, final int end) {
+    checkRange(start, end, length());
+    return new SourceRange(start, end);
+  }
+
+  @Override
+  public String toString() {
+    return copyRange(0, length());
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * Comparator of strings that allows <code>null</code> values and orders them first.
+ */
+final class NullFirstComparator implements Comparator<String>, Serializable {
+
+  static final NullFirstComparator INSTANCE = new NullFirstComparator();
+
+  /**
+   * .
+   */
+  private static final long serialVersionUID = -3154829347012985342L;
+
+  private NullFirstComparator() {
+  }
+
+  @Override
+  public int compare(final String o1, final String o2) {
+    if (o1 == null) {
+      return o2 == null ? 0 : -1;
+    }
+    if (o2 == null) {
+      return 1;
+    }
+    return o1.compareTo(o2);
+  }
+
+  private Object readResolve() {
+    return INSTANCE;
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Writer that allows fragments to be rendered concurrently while the output is written in document
+ * order. The result of a fragment that is still rendering is represented by a placeholder. The text
+ * that is written after a placeholder is buffered until all the placeholders before it are filled.
+ * Text that is written while there are no pending placeholders goes directly to the wrapped
+ * writer.
+ *
+ * <p>
+ * The writer should be used from one thread only, while the fragments can be rendered on any
+ * number of threads. See {@link AbstractTemplateContext#renderFragmentAsync}. In case a
+ * {@link RenderDeadline} is set, the waiting for the fragments is limited by the deadline.
+ */
+public class OrderedFragmentWriter extends Writer {
+
+  /**
+   * The fragment results and buffered texts that are not written to the wrapped writer yet. The
+   * elements are either {@link Future} or {@link StringBuilder} instances.
+   */
+  private final LinkedList<Object> pendingSegments = new LinkedList<Object>();
+
+  /**
+   * The deadline that limits the waiting for the fragments or <code>null</code>.
+   */
+  private RenderDeadline renderDeadline;
+
+  /**
+   * The wrapped writer.
+   */
+  private final Writer writer;
+
+  public OrderedFragmentWriter(final Writer writer) {
+    this.writer = writer;
+  }
+
+  /**
+   * Waits until all of the fragments are rendered and writes all pending segments to the wrapped
+   * writer.
+   *
+   * @throws IOException
+   *           if the wrapped writer throws an exception or the rendering of a fragment failed
+   *           with a checked exception.
+   */
+  public void awaitFragments() throws IOException {
+    writeSegments(true);
+  }
+
+  /**
+   * Waits for all fragments, writes the pending segments and closes the wrapped writer.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      awaitFragments();
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Writes the segments that are available without waiting and flushes the wrapped writer.
+   */
+  @Override
+  public void flush() throws IOException {
+    writeSegments(false);
+    writer.flush();
+  }
+
+  public int getPendingFragmentCount() {
+    int result = 0;
+    for (Object segment : pendingSegments) {
+      if (segment instanceof Future) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  public RenderDeadline getRenderDeadline() {
+    return renderDeadline;
+  }
+
+  public Writer getWrapped() {
+    return writer;
+  }
+
+  private StringBuilder lastBuffer() {
+    Object last = pendingSegments.getLast();
+    if (last instanceof StringBuilder) {
+      return (StringBuilder) last;
+    }
+    StringBuilder result = new StringBuilder();
+    pendingSegments.add(result);
+    return result;
+  }
+
+  private String resolveFragment(final Future<?> fragment) throws IOException {
+    try {
+      if (renderDeadline != null) {
+        return String.valueOf(renderDeadline.await(fragment));
+      }
+      return String.valueOf(fragment.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a fragment to be rendered");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Rendering fragment failed", cause);
+    }
+  }
+
+  /**
+   * Sets the deadline that limits the waiting for the fragments. In case the deadline passes
+   * while a fragment is waited for, a {@link RenderTimeoutException} is thrown.
+   *
+   * @param renderDeadline
+   *          The deadline or <code>null</code> if the waiting is not limited.
+   */
+  public void setRenderDeadline(final RenderDeadline renderDeadline) {
+    this.renderDeadline = renderDeadline;
+  }
+
+  @Override
+  public void write(final char[] cbuf, final int off, final int len) throws IOException {
+    if (pendingSegments.isEmpty()) {
+      writer.write(cbuf, off, len);
+    } else {
+      lastBuffer().append(cbuf, off, len);
+    }
+  }
+
+  @Override
+  public void write(final String str, final int off, final int len) throws IOException {
+    if (pendingSegments.isEmpty()) {
+      writer.write(str, off, len);
+    } else {
+      lastBuffer().append(str, off, off + len);
+    }
+  }
+
+  /**
+   * Adds a placeholder for a fragment that is rendered in the background. The result of the
+   * fragment is written to the wrapped writer after all of the previous content.
+   *
+   * @param fragment
+   *          The future result of the fragment rendering.
+   * @throws IOException
+   *           if the wrapped writer throws an exception or one of the previous fragments failed.
+   */
+  public void writeFragment(final Future<String> fragment) throws IOException {
+    pendingSegments.add(fragment);
+    writeSegments(false);
+  }
+
+  private void writeSegments(final boolean wait) throws IOException {
+    while (!pendingSegments.isEmpty()) {
+      Object segment = pendingSegments.getFirst();
+      if (segment instanceof Future) {
+        Future<?> fragment = (Future<?>) segment;
+        if (!wait && !fragment.isDone()) {
+          return;
+        }
+        writer.write(resolveFragment(fragment));
+      } else {
+        writer.append((StringBuilder) segment);
+      }
+      pendingSegments.removeFirst();
+    }
+  }
+
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+/**
+ * Exception that is thrown when the output of the rendering exceeds the allowed size.
+ */
+public class OutputLimitExceededException extends RenderAbortedException {
+
+  /**
+   * .
+   */
+  private static final long serialVersionUID = -2150784604328841870L;
+
+  public OutputLimitExceededException(final String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+/**
+ * Wrapper around an {@link Iterable} whose iterators fetch the elements on an executor ahead of
+ * the consumer. Templates can iterate through it like through any other {@link Iterable}, so it
+ * can be passed to the templates instead of a slow {@link Iterable} like a lazy database cursor or
+ * a paged remote result. See {@link PrefetchingIterator} for the details.
+ *
+ * <p>
+ * In case a {@link RenderArena} is specified, every iterator is registered to it, so the
+ * iterators are closed when the arena is reset at the end of the rendering, even if the loop of
+ * the template exited early.
+ *
+ * @param <T>
+ *          The type of the elements.
+ */
+public class PrefetchingIterable<T> implements Iterable<T> {
+
+  private final Executor executor;
+
+  private final int maxPrefetchedElements;
+
+  private final RenderArena renderArena;
+
+  private final Iterable<? extends T> source;
+
+  /**
+   * Constructor.
+   *
+   * @param source
+   *          The iterable whose elements are fetched.
+   * @param executor
+   *          The executor that fetches the elements.
+   * @param maxPrefetchedElements
+   *          The maximum number of elements that are fetched ahead of the consumer by one
+   *          iterator.
+   */
+  public PrefetchingIterable(final Iterable<? extends T> source, final Executor executor,
+      final int maxPrefetchedElements) {
+    this(source, executor, maxPrefetchedElements, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param source
+   *          The iterable whose elements are fetched.
+   * @param executor
+   *          The executor that fetches the elements.
+   * @param maxPrefetchedElements
+   *          The maximum number of elements that are fetched ahead of the consumer by one
+   *          iterator.
+   * @param renderArena
+   *          The arena of the rendering that closes the iterators at the end of the rendering or
+   *          <code>null</code> if the iterators should only be closed when they are garbage
+   *          collected.
+   */
+  public PrefetchingIterable(final Iterable<? extends T> source, final Executor executor,
+      final int maxPrefetchedElements, final RenderArena renderArena) {
+    if (source == null) {
+      throw new NullPointerException("Source must not be null");
+    }
+    if (maxPrefetchedElements <= 0) {
+      throw new IllegalArgumentException("Maximum number of prefetched elements must be positive: "
+          + maxPrefetchedElements);
+    }
+    this.source = source;
+    this.executor = executor;
+    this.maxPrefetchedElements = maxPrefetchedElements;
+    this.renderArena = renderArena;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    PrefetchingIterator<T> iterator =
+        new PrefetchingIterator<T>(source, executor, maxPrefetchedElements);
+    if (renderArena != null) {
+      renderArena.registerPrefetchingIterator(iterator);
+    }
+    return iterator;
+  }
+
+}
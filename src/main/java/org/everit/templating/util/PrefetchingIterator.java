@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iterator that fetches the elements of an {@link Iterable} on an executor ahead of the consumer.
+ * The fetching starts when the first element is requested and it can get ahead of the consumer by
+ * a limited number of elements. In case the {@link Iterable} reads its elements from a slow source
+ * like a database cursor, the fetching of the next elements overlaps with the rendering of the
+ * previous ones. Exceptions of the source are thrown by {@link #hasNext()} after the elements that
+ * were fetched before the failure.
+ *
+ * <p>
+ * In case the consumer does not need the rest of the elements, {@link #close()} should be called.
+ * As the loops of templates do not close their iterators, the iterator should be registered to
+ * the {@link RenderArena} of the rendering, which closes it at the end of the rendering (see
+ * {@link PrefetchingIterable}). If the iterator is abandoned without closing, the fetching stops
+ * only when the iterator is garbage collected and the fetching waits for free space in the
+ * queue. In both cases, the iterator of
+ * the source is closed if it implements {@link Closeable}.
+ *
+ * @param <T>
+ *          The type of the elements.
+ */
+public class PrefetchingIterator<T> implements Iterator<T> {
+
+  /**
+   * Queue element that holds the exception of the source.
+   */
+  private static final class Failure {
+
+    private final Throwable cause;
+
+    Failure(final Throwable cause) {
+      this.cause = cause;
+    }
+  }
+
+  /**
+   * The task that fetches the elements. It references the consumer weakly, so an abandoned
+   * consumer can be garbage collected while the task waits for free space in the queue.
+   */
+  private static final class Producer implements Runnable {
+
+    private final WeakReference<PrefetchingIterator<?>> consumerReference;
+
+    private final BlockingQueue<Object> queue;
+
+    private final Iterable<?> source;
+
+    private volatile boolean stopped = false;
+
+    Producer(final Iterable<?> source, final BlockingQueue<Object> queue,
+        final PrefetchingIterator<?> consumer) {
+      this.source = source;
+      this.queue = queue;
+      this.consumerReference = new WeakReference<PrefetchingIterator<?>>(consumer);
+    }
+
+    private void closeSourceIterator(final Iterator<?> sourceIterator) {
+      if (sourceIterator instanceof Closeable) {
+        try {
+          ((Closeable) sourceIterator).close();
+        } catch (IOException e) {
+          // The elements are not needed anymore, so the exception is not interesting for anyone
+        }
+      }
+    }
+
+    /**
+     * Puts an element to the queue.
+     *
+     * @return Whether the element was put. False if the consumer was closed or abandoned.
+     */
+    private boolean put(final Object element) throws InterruptedException {
+      while (!stopped && consumerReference.get() != null) {
+        if (queue.offer(element, ABANDON_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public void run() {
+      Iterator<?> sourceIterator = null;
+      try {
+        sourceIterator = source.iterator();
+        boolean accepted = true;
+        while (accepted && !stopped && sourceIterator.hasNext()) {
+          Object element = sourceIterator.next();
+          accepted = put(element == null ? NULL_ELEMENT : element);
+        }
+        if (accepted && !stopped) {
+          put(END_OF_ELEMENTS);
+        }
+      } catch (InterruptedException e) {
+        putFailure(new RenderAbortedException("Interrupted while fetching the elements"));
+        Thread.currentThread().interrupt();
+      } catch (RuntimeException e) {
+        putFailure(e);
+      } catch (Error e) {
+        putFailure(e);
+        throw e;
+      } finally {
+        closeSourceIterator(sourceIterator);
+      }
+    }
+
+    private void putFailure(final Throwable cause) {
+      // The failure must be reported even if the thread is interrupted
+      boolean interrupted = Thread.interrupted();
+      try {
+        put(new Failure(cause));
+      } catch (InterruptedException e) {
+        interrupted = true;
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  /**
+   * The interval of checking whether the consumer was closed or abandoned when the queue is full.
+   */
+  private static final long ABANDON_CHECK_INTERVAL_MILLIS = 100;
+
+  /**
+   * Queue element that marks the end of the elements.
+   */
+  private static final Object END_OF_ELEMENTS = new Object();
+
+  /**
+   * Queue element that stands for a <code>null</code> element, as the queue cannot hold
+   * <code>null</code> values.
+   */
+  private static final Object NULL_ELEMENT = new Object();
+
+  private final Executor executor;
+
+  private boolean finished = false;
+
+  private boolean hasNextElement = false;
+
+  private T nextElement;
+
+  private final Producer producer;
+
+  private final BlockingQueue<Object> queue;
+
+  /**
+   * The deadline that limits the waiting for the elements or <code>null</code>.
+   */
+  private RenderDeadline renderDeadline;
+
+  private boolean started = false;
+
+  /**
+   * Constructor.
+   *
+   * @param source
+   *          The iterable whose elements are fetched. Its {@link Iterable#iterator()} method is
+   *          also called on the executor.
+   * @param executor
+   *          The executor that fetches the elements.
+   * @param maxPrefetchedElements
+   *          The maximum number of elements that are fetched ahead of the consumer.
+   */
+  public PrefetchingIterator(final Iterable<? extends T> source, final Executor executor,
+      final int maxPrefetchedElements) {
+    if (maxPrefetchedElements <= 0) {
+      throw new IllegalArgumentException("Maximum number of prefetched elements must be positive: "
+          + maxPrefetchedElements);
+    }
+    this.executor = executor;
+    this.queue = new ArrayBlockingQueue<Object>(maxPrefetchedElements);
+    this.producer = new Producer(source, queue, this);
+  }
+
+  /**
+   * Stops the fetching of the elements and drops the elements that are not consumed yet.
+   */
+  public void close() {
+    producer.stopped = true;
+    finished = true;
+    hasNextElement = false;
+    nextElement = null;
+    queue.clear();
+  }
+
+  public RenderDeadline getRenderDeadline() {
+    return renderDeadline;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (hasNextElement) {
+      return true;
+    }
+    if (finished) {
+      return false;
+    }
+    if (!started) {
+      // Not marked as started if the executor rejects the task, so the next call tries again
+      executor.execute(producer);
+      started = true;
+    }
+
+    Object element;
+    try {
+      element = takeElement();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RenderAbortedException("Interrupted while waiting for the next element");
+    }
+
+    if (element == END_OF_ELEMENTS) {
+      finished = true;
+      return false;
+    }
+    if (element instanceof Failure) {
+      finished = true;
+      Throwable cause = ((Failure) element).cause;
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+    if (element == NULL_ELEMENT) {
+      nextElement = null;
+    } else {
+      @SuppressWarnings("unchecked")
+      T typedElement = (T) element;
+      nextElement = typedElement;
+    }
+    hasNextElement = true;
+    return true;
+  }
+
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    T result = nextElement;
+    nextElement = null;
+    hasNextElement = false;
+    return result;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Sets the deadline that limits the waiting for the elements. In case the deadline passes while
+   * an element is waited for, {@link #hasNext()} throws a {@link RenderTimeoutException}.
+   * {@link UniversalIterable} sets its deadline automatically on the iterators of this type.
+   *
+   * @param renderDeadline
+   *          The deadline or <code>null</code> if the waiting is not limited.
+   */
+  public void setRenderDeadline(final RenderDeadline renderDeadline) {
+    this.renderDeadline = renderDeadline;
+  }
+
+  private Object takeElement() throws InterruptedException {
+    if (renderDeadline == null) {
+      return queue.take();
+    }
+    Object result = null;
+    while (result == null) {
+      renderDeadline.checkNow();
+      result = queue.poll(renderDeadline.getRemainingNanos(), TimeUnit.NANOSECONDS);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Recycles the temporary objects of renderings, like the variable scopes of fragments and the
+ * buffers of fragment outputs. An instance belongs to one template context and should not be used
+ * by multiple threads at the same time. The objects are taken from the arena during the rendering,
+ * given back when they are not used anymore and {@link #reset()} is called at the end of every
+ * rendering. The arena also closes the {@link PrefetchingIterator} instances of the rendering at
+ * the end of the rendering, so the loops that exit early do not keep fetching elements.
+ *
+ * <p>
+ * In debug mode the released objects are not reused. The released scopes are invalidated, so every
+ * access to them throws an {@link IllegalStateException}. Releasing an object twice or finishing
+ * the rendering with objects that were not released also throws an {@link IllegalStateException}.
+ */
+public class RenderArena {
+
+  /**
+   * Map that is put into the released scopes in debug mode.
+   */
+  private static final class ReleasedMap extends AbstractMap<String, Object> {
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+      throw new IllegalStateException("Variable scope is used after it was released");
+    }
+
+    @Override
+    public Object put(final String key, final Object value) {
+      throw new IllegalStateException("Variable scope is used after it was released");
+    }
+  }
+
+  private static final int DEFAULT_MAX_BUFFER_CAPACITY = 64 * 1024;
+
+  private static final int DEFAULT_MAX_POOLED_OBJECTS = 16;
+
+  private static final ReleasedMap RELEASED_MAP = new ReleasedMap();
+
+  /**
+   * The objects that are taken from the arena and not released yet. Used only in debug mode.
+   */
+  private final Map<Object, Boolean> acquiredObjects = new IdentityHashMap<Object, Boolean>();
+
+  private int acquiredObjectCount = 0;
+
+  private long createdBufferCount = 0;
+
+  private long createdScopeCount = 0;
+
+  private final boolean debug;
+
+  private final List<StringBuilder> freeBuffers = new ArrayList<StringBuilder>();
+
+  private final List<InheritantMap<String, Object>> freeScopes =
+      new ArrayList<InheritantMap<String, Object>>();
+
+  /**
+   * Buffers with larger capacity are not kept to avoid holding the memory of a huge output.
+   */
+  private final int maxBufferCapacity;
+
+  private final int maxPooledObjects;
+
+  /**
+   * The iterators that are closed by the next {@link #reset()}. Iterators might be created on
+   * other threads by the fragments that are rendered asynchronously, so the list is synchronized.
+   */
+  private final List<PrefetchingIterator<?>> prefetchingIterators =
+      new ArrayList<PrefetchingIterator<?>>();
+
+  private long reusedBufferCount = 0;
+
+  private long reusedScopeCount = 0;
+
+  /**
+   * Constructor with default limits.
+   *
+   * @param debug
+   *          Whether the usage of the released objects should be detected instead of reusing them.
+   */
+  public RenderArena(final boolean debug) {
+    this(debug, DEFAULT_MAX_POOLED_OBJECTS, DEFAULT_MAX_BUFFER_CAPACITY);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param debug
+   *          Whether the usage of the released objects should be detected instead of reusing them.
+   * @param maxPooledObjects
+   *          The maximum number of scopes and the maximum number of buffers that are kept for
+   *          reuse.
+   * @param maxBufferCapacity
+   *          The maximum capacity of a buffer in characters that is kept for reuse.
+   */
+  public RenderArena(final boolean debug, final int maxPooledObjects,
+      final int maxBufferCapacity) {
+    this.debug = debug;
+    this.maxPooledObjects = maxPooledObjects;
+    this.maxBufferCapacity = maxBufferCapacity;
+  }
+
+  /**
+   * Takes an empty buffer from the arena.
+   *
+   * @return The buffer that should be given back via {@link #releaseBuffer(StringBuilder)}.
+   */
+  public StringBuilder acquireBuffer() {
+    StringBuilder result;
+    if (freeBuffers.isEmpty()) {
+      createdBufferCount++;
+      result = new StringBuilder();
+    } else {
+      reusedBufferCount++;
+      result = freeBuffers.remove(freeBuffers.size() - 1);
+    }
+    registerAcquired(result);
+    return result;
+  }
+
+  /**
+   * Takes an empty variable scope from the arena. The scope behaves like an
+   * {@link InheritantMap} that was created with updateOnParent=false.
+   *
+   * @param parent
+   *          The parent of the scope.
+   * @return The scope that should be given back via {@link #releaseScope(InheritantMap)}.
+   */
+  public InheritantMap<String, Object> acquireScope(final Map<String, Object> parent) {
+    InheritantMap<String, Object> result;
+    if (freeScopes.isEmpty()) {
+      createdScopeCount++;
+      result = new InheritantMap<String, Object>(parent, false);
+    } else {
+      reusedScopeCount++;
+      result = freeScopes.remove(freeScopes.size() - 1);
+      result.recycle(parent);
+    }
+    registerAcquired(result);
+    return result;
+  }
+
+  public long getCreatedBufferCount() {
+    return createdBufferCount;
+  }
+
+  public long getCreatedScopeCount() {
+    return createdScopeCount;
+  }
+
+  public long getReusedBufferCount() {
+    return reusedBufferCount;
+  }
+
+  public long getReusedScopeCount() {
+    return reusedScopeCount;
+  }
+
+  public boolean isDebug() {
+    return debug;
+  }
+
+  private void registerAcquired(final Object object) {
+    acquiredObjectCount++;
+    if (debug) {
+      acquiredObjects.put(object, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Registers an iterator that is closed when {@link #reset()} is called at the end of the
+   * rendering. Closing an iterator that already returned all of its elements has no effect.
+   *
+   * @param iterator
+   *          The iterator to close at the end of the rendering.
+   */
+  public void registerPrefetchingIterator(final PrefetchingIterator<?> iterator) {
+    synchronized (prefetchingIterators) {
+      prefetchingIterators.add(iterator);
+    }
+  }
+
+  private void registerReleased(final Object object) {
+    if (debug && acquiredObjects.remove(object) == null) {
+      throw new IllegalStateException("Object was not acquired from this arena or it was already"
+          + " released");
+    }
+    acquiredObjectCount--;
+  }
+
+  /**
+   * Gives back a buffer to the arena. The buffer must not be used after this call.
+   *
+   * @param buffer
+   *          The buffer that was returned by {@link #acquireBuffer()}.
+   */
+  public void releaseBuffer(final StringBuilder buffer) {
+    registerReleased(buffer);
+    if (!debug && freeBuffers.size() < maxPooledObjects
+        && buffer.capacity() <= maxBufferCapacity) {
+      buffer.setLength(0);
+      freeBuffers.add(buffer);
+    }
+  }
+
+  /**
+   * Gives back a variable scope to the arena. The scope must not be used after this call.
+   *
+   * @param scope
+   *          The scope that was returned by {@link #acquireScope(Map)}.
+   */
+  public void releaseScope(final InheritantMap<String, Object> scope) {
+    registerReleased(scope);
+    if (debug) {
+      scope.invalidate(RELEASED_MAP);
+    } else if (freeScopes.size() < maxPooledObjects) {
+      scope.recycle(null);
+      freeScopes.add(scope);
+    }
+  }
+
+  /**
+   * Should be called at the end of every rendering. Closes the iterators that were registered via
+   * {@link #registerPrefetchingIterator(PrefetchingIterator)}.
+   *
+   * @throws IllegalStateException
+   *           if there are objects that were acquired during the rendering but not released. In
+   *           that case the arena is reset anyway.
+   */
+  public void reset() {
+    synchronized (prefetchingIterators) {
+      for (PrefetchingIterator<?> iterator : prefetchingIterators) {
+        iterator.close();
+      }
+      prefetchingIterators.clear();
+    }
+    int leakedObjectCount = acquiredObjectCount;
+    acquiredObjectCount = 0;
+    acquiredObjects.clear();
+    if (leakedObjectCount > 0) {
+      throw new IllegalStateException(leakedObjectCount
+          + " objects were not released to the arena during the rendering");
+    }
+  }
+}
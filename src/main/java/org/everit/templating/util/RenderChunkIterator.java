@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Iterator that returns the output of a rendering in chunks. The rendering starts on the executor
+ * when the first chunk is requested and it can get ahead of the consumer by a limited number of
+ * chunks, so the memory usage does not depend on the size of the output. Exceptions of the
+ * rendering are thrown by {@link #hasNext()} after the chunks that were rendered before the
+ * failure.
+ *
+ * <p>
+ * In case the consumer does not need the rest of the output, {@link #close()} must be called. The
+ * rendering is aborted with a {@link RenderAbortedException} on its next write.
+ */
+public class RenderChunkIterator implements Iterator<String> {
+
+  /**
+   * Writer that collects the output of the rendering into chunks.
+   */
+  private class ChunkWriter extends Writer {
+
+    private final char[] buffer = new char[chunkSize];
+
+    private int count = 0;
+
+    @Override
+    public void close() {
+      // Nothing to do, the end of the output is signaled when the rendering returns
+    }
+
+    @Override
+    public void flush() {
+      if (count > 0) {
+        put(new String(buffer, 0, count));
+        count = 0;
+      }
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) {
+      int offset = off;
+      int remaining = len;
+      while (remaining > 0) {
+        int n = Math.min(remaining, buffer.length - count);
+        System.arraycopy(cbuf, offset, buffer, count, n);
+        count += n;
+        offset += n;
+        remaining -= n;
+        if (count == buffer.length) {
+          flush();
+        }
+      }
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) {
+      int offset = off;
+      int remaining = len;
+      while (remaining > 0) {
+        int n = Math.min(remaining, buffer.length - count);
+        str.getChars(offset, offset + n, buffer, count);
+        count += n;
+        offset += n;
+        remaining -= n;
+        if (count == buffer.length) {
+          flush();
+        }
+      }
+    }
+  }
+
+  /**
+   * Queue element that holds the exception of the rendering.
+   */
+  private static final class Failure {
+
+    private final Throwable cause;
+
+    Failure(final Throwable cause) {
+      this.cause = cause;
+    }
+  }
+
+  /**
+   * Queue element that marks the end of the output.
+   */
+  private static final Object END_OF_OUTPUT = new Object();
+
+  private final int chunkSize;
+
+  private volatile boolean closed = false;
+
+  private final Executor executor;
+
+  private boolean finished = false;
+
+  private String nextChunk;
+
+  private final BlockingQueue<Object> queue;
+
+  private final RenderAction renderAction;
+
+  private boolean started = false;
+
+  /**
+   * Constructor.
+   *
+   * @param renderAction
+   *          The rendering whose output is iterated.
+   * @param executor
+   *          The executor that runs the rendering.
+   * @param chunkSize
+   *          The maximum number of characters in one chunk. Smaller chunks are returned if the
+   *          rendering flushes the writer or at the end of the output.
+   * @param maxBufferedChunks
+   *          The maximum number of chunks that are rendered ahead of the consumer.
+   */
+  public RenderChunkIterator(final RenderAction renderAction, final Executor executor,
+      final int chunkSize, final int maxBufferedChunks) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+    }
+    this.renderAction = renderAction;
+    this.executor = executor;
+    this.chunkSize = chunkSize;
+    this.queue = new ArrayBlockingQueue<Object>(maxBufferedChunks);
+  }
+
+  /**
+   * Aborts the rendering if it is still running and drops the chunks that are not consumed yet.
+   */
+  public void close() {
+    closed = true;
+    finished = true;
+    nextChunk = null;
+    queue.clear();
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (nextChunk != null) {
+      return true;
+    }
+    if (finished) {
+      return false;
+    }
+    if (!started) {
+      start();
+    }
+
+    Object element;
+    try {
+      element = queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RenderAbortedException("Interrupted while waiting for the rendering");
+    }
+
+    if (element == END_OF_OUTPUT) {
+      finished = true;
+      return false;
+    }
+    if (element instanceof Failure) {
+      finished = true;
+      Throwable cause = ((Failure) element).cause;
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+    nextChunk = (String) element;
+    return true;
+  }
+
+  @Override
+  public String next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    String result = nextChunk;
+    nextChunk = null;
+    return result;
+  }
+
+  private void put(final Object element) {
+    if (closed) {
+      throw new RenderAbortedException("The consumer of the output was closed");
+    }
+    try {
+      queue.put(element);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RenderAbortedException("Interrupted while waiting for the consumer of the output");
+    }
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Passes the rendering to the executor. In case the executor rejects it, the iterator is not
+   * marked as started, so the next call of {@link #hasNext()} tries again instead of waiting for
+   * chunks that never come.
+   */
+  private void start() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        ChunkWriter chunkWriter = new ChunkWriter();
+        try {
+          renderAction.render(chunkWriter);
+          chunkWriter.flush();
+          put(END_OF_OUTPUT);
+        } catch (RuntimeException e) {
+          putFailure(e);
+        } catch (Error e) {
+          putFailure(e);
+          throw e;
+        }
+      }
+
+      private void putFailure(final Throwable cause) {
+        if (!closed) {
+          put(new Failure(cause));
+        }
+      }
+    });
+    started = true;
+  }
+}
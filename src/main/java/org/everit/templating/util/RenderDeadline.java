@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The time budget of a rendering. The same instance is passed to the template context, the
+ * writers and the iterables of one rendering, so fragments and loops spend the same budget. The
+ * frequent operations call {@link #check()} that reads the clock only in every N calls. When the
+ * deadline passes, a {@link RenderTimeoutException} is thrown that aborts the rendering.
+ *
+ * <p>
+ * An instance can be shared by the threads that render the fragments of the same page.
+ */
+public class RenderDeadline {
+
+  private static final int DEFAULT_CHECK_INTERVAL = 64;
+
+  private final long budgetMillis;
+
+  /**
+   * The number of {@link #check()} calls between two clock reads.
+   */
+  private final int checkInterval;
+
+  /**
+   * The value of {@link System#nanoTime()} when the budget is spent.
+   */
+  private final long deadlineNanos;
+
+  private volatile boolean expired = false;
+
+  /**
+   * The number of {@link #check()} calls since the last clock read. The field is not synchronized,
+   * as a lost update only delays the next clock read.
+   */
+  private int uncheckedCallCount = 0;
+
+  /**
+   * Constructor that reads the clock in every 64th call of {@link #check()}.
+   *
+   * @param budgetMillis
+   *          The time budget of the rendering in milliseconds, starting from now.
+   */
+  public RenderDeadline(final long budgetMillis) {
+    this(budgetMillis, DEFAULT_CHECK_INTERVAL);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param budgetMillis
+   *          The time budget of the rendering in milliseconds, starting from now.
+   * @param checkInterval
+   *          The number of {@link #check()} calls between two clock reads.
+   */
+  public RenderDeadline(final long budgetMillis, final int checkInterval) {
+    if (checkInterval <= 0) {
+      throw new IllegalArgumentException("Check interval must be positive: " + checkInterval);
+    }
+    this.budgetMillis = budgetMillis;
+    this.checkInterval = checkInterval;
+    this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+  }
+
+  /**
+   * Cheap check that should be called by frequent operations like appending text or iterating. The
+   * clock is read only in every N calls.
+   *
+   * @throws RenderTimeoutException
+   *           if the deadline passed.
+   */
+  public void check() {
+    if (expired) {
+      throwTimeout();
+    }
+    uncheckedCallCount++;
+    if (uncheckedCallCount >= checkInterval) {
+      uncheckedCallCount = 0;
+      checkNow();
+    }
+  }
+
+  /**
+   * Waits for the result of a future, but not longer than the remaining time of the budget.
+   *
+   * @param future
+   *          The future to wait for.
+   * @param <T>
+   *          The type of the result.
+   * @return The result of the future.
+   * @throws InterruptedException
+   *           if the current thread was interrupted while waiting.
+   * @throws ExecutionException
+   *           if the computation of the result failed.
+   * @throws RenderTimeoutException
+   *           if the deadline passed before the result was available.
+   */
+  public <T> T await(final Future<T> future) throws InterruptedException, ExecutionException {
+    while (true) {
+      checkNow();
+      try {
+        return future.get(getRemainingNanos(), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        // The deadline is checked again by the next iteration
+      }
+    }
+  }
+
+  /**
+   * Reads the clock and checks if the deadline passed.
+   *
+   * @throws RenderTimeoutException
+   *           if the deadline passed.
+   */
+  public void checkNow() {
+    if (expired || System.nanoTime() - deadlineNanos >= 0) {
+      expired = true;
+      throwTimeout();
+    }
+  }
+
+  public long getBudgetMillis() {
+    return budgetMillis;
+  }
+
+  /**
+   * Returns the remaining time of the budget.
+   *
+   * @return The remaining time in milliseconds or zero if the deadline passed.
+   */
+  public long getRemainingMillis() {
+    long remainingNanos = deadlineNanos - System.nanoTime();
+    if (remainingNanos <= 0) {
+      return 0;
+    }
+    return TimeUnit.NANOSECONDS.toMillis(remainingNanos);
+  }
+
+  /**
+   * Returns the remaining time of the budget with the precision that is necessary for timed waits.
+   *
+   * @return The remaining time in nanoseconds or zero if the deadline passed.
+   */
+  long getRemainingNanos() {
+    return Math.max(0, deadlineNanos - System.nanoTime());
+  }
+
+  /**
+   * Tells if the deadline passed. The method reads the clock.
+   *
+   * @return Whether the deadline passed.
+   */
+  public boolean isExpired() {
+    if (!expired && System.nanoTime() - deadlineNanos >= 0) {
+      expired = true;
+    }
+    return expired;
+  }
+
+  private void throwTimeout() {
+    throw new RenderTimeoutException("Rendering exceeded the time budget of " + budgetMillis
+        + " ms");
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.Executor;
+
+/**
+ * Reader that produces the output of a rendering on demand. The rendering runs on an executor and
+ * can get ahead of the reader by a limited number of chunks. See {@link RenderChunkIterator}.
+ * Closing the reader before the end of the output aborts the rendering.
+ */
+public class RenderReader extends Reader {
+
+  private String chunk;
+
+  private final RenderChunkIterator chunkIterator;
+
+  /**
+   * The position of the next character to read within {@link #chunk}.
+   */
+  private int chunkPosition = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param renderAction
+   *          The rendering whose output is read.
+   * @param executor
+   *          The executor that runs the rendering.
+   * @param chunkSize
+   *          The maximum number of characters that the rendering passes to the reader at once.
+   * @param maxBufferedChunks
+   *          The maximum number of chunks that are rendered ahead of the reader.
+   */
+  public RenderReader(final RenderAction renderAction, final Executor executor,
+      final int chunkSize, final int maxBufferedChunks) {
+    this.chunkIterator = new RenderChunkIterator(renderAction, executor, chunkSize,
+        maxBufferedChunks);
+  }
+
+  @Override
+  public void close() {
+    chunkIterator.close();
+    chunk = null;
+  }
+
+  private boolean nextChunk() throws IOException {
+    try {
+      while (chunk == null || chunkPosition == chunk.length()) {
+        if (!chunkIterator.hasNext()) {
+          chunk = null;
+          return false;
+        }
+        chunk = chunkIterator.next();
+        chunkPosition = 0;
+      }
+      return true;
+    } catch (RuntimeException e) {
+      throw new IOException("Rendering failed", e);
+    }
+  }
+
+  @Override
+  public int read(final char[] cbuf, final int off, final int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!nextChunk()) {
+      return -1;
+    }
+    int n = Math.min(len, chunk.length() - chunkPosition);
+    chunk.getChars(chunkPosition, chunkPosition + n, cbuf, off);
+    chunkPosition += n;
+    return n;
+  }
+
+}
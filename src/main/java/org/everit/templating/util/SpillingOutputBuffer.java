@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writer that holds the encoded output until it is transferred to a channel. Can be used when the
+ * output must be rendered fully before it is sent, e.g. to be able to send its length or to retry
+ * the sending. The bytes are stored in direct {@link ByteBuffer} segments outside of the heap. In
+ * case the size of the segments would exceed a threshold, the content is moved to a temporary file
+ * and the further output is appended to the file.
+ *
+ * <p>
+ * The writer must be closed before the content is read. The content can be transferred any number
+ * of times until {@link #dispose()} is called, which deletes the temporary file. Instances are not
+ * thread-safe.
+ */
+public class SpillingOutputBuffer extends AbstractEncodingWriter {
+
+  private static final String TEMP_FILE_PREFIX = "template-output";
+
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private boolean disposed = false;
+
+  private FileChannel fileChannel;
+
+  private long length = 0;
+
+  private final long memoryThreshold;
+
+  private RandomAccessFile randomAccessFile;
+
+  /**
+   * The segments that hold the content until it is moved to the temporary file. After that, the
+   * only segment collects the bytes until they are written to the file.
+   */
+  private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+
+  private final int segmentSize;
+
+  private final File tempDirectory;
+
+  private File tempFile;
+
+  /**
+   * Constructor.
+   *
+   * @param charset
+   *          The charset that is used to encode the output.
+   * @param segmentSize
+   *          The size of one direct buffer segment in bytes.
+   * @param memoryThreshold
+   *          The maximum number of bytes that are held in the segments. In case the content would
+   *          exceed this limit, it is moved to a temporary file.
+   * @param tempDirectory
+   *          The directory of the temporary file or <code>null</code> if the default temporary
+   *          directory should be used.
+   */
+  public SpillingOutputBuffer(final Charset charset, final int segmentSize,
+      final long memoryThreshold, final File tempDirectory) {
+    super(charset, segmentSize);
+    if (memoryThreshold < segmentSize) {
+      throw new IllegalArgumentException("Memory threshold must not be less than the segment size: "
+          + memoryThreshold);
+    }
+    this.segmentSize = segmentSize;
+    this.memoryThreshold = memoryThreshold;
+    this.tempDirectory = tempDirectory;
+  }
+
+  private ByteBuffer acquireWritableSegment() throws IOException {
+    if (!segments.isEmpty()) {
+      ByteBuffer lastSegment = segments.get(segments.size() - 1);
+      if (lastSegment.hasRemaining()) {
+        return lastSegment;
+      }
+      if (fileChannel != null) {
+        writeToFile(lastSegment);
+        return lastSegment;
+      }
+    }
+    if ((long) (segments.size() + 1) * segmentSize > memoryThreshold) {
+      spill();
+      return segments.get(0);
+    }
+    ByteBuffer segment = ByteBuffer.allocateDirect(segmentSize);
+    segments.add(segment);
+    return segment;
+  }
+
+  @Override
+  protected void closeBytes() throws IOException {
+    if (fileChannel != null) {
+      writeToFile(segments.get(0));
+    }
+  }
+
+  /**
+   * Drops the references to the segments and deletes the temporary file. The writer is closed if
+   * it was not closed before. The memory of the direct buffer segments is freed by the garbage
+   * collector when the segments are collected, as Java 6 cannot free direct buffers explicitly.
+   *
+   * @throws IOException
+   *           if the temporary file cannot be closed.
+   */
+  public void dispose() throws IOException {
+    if (disposed) {
+      return;
+    }
+    disposed = true;
+    try {
+      if (!isClosed()) {
+        close();
+      }
+    } finally {
+      segments.clear();
+      if (randomAccessFile != null) {
+        try {
+          randomAccessFile.close();
+        } finally {
+          fileChannel = null;
+          randomAccessFile = null;
+          if (!tempFile.delete()) {
+            tempFile.deleteOnExit();
+          }
+          tempFile = null;
+        }
+      }
+    }
+  }
+
+  private void ensureReadable() {
+    if (disposed) {
+      throw new IllegalStateException("Output buffer is disposed");
+    }
+    if (!isClosed()) {
+      throw new IllegalStateException("Output buffer must be closed before reading the content");
+    }
+  }
+
+  public long getMemoryThreshold() {
+    return memoryThreshold;
+  }
+
+  /**
+   * Returns whether the content was moved to a temporary file.
+   *
+   * @return Whether the content is in a temporary file.
+   */
+  public boolean isSpilled() {
+    return tempFile != null;
+  }
+
+  /**
+   * Returns the exact number of bytes of the content. Characters that are not encoded yet are not
+   * counted until the writer is flushed or closed.
+   *
+   * @return The length of the content in bytes.
+   */
+  public long length() {
+    return length;
+  }
+
+  /**
+   * Moves the content of the segments to a temporary file and keeps the first segment to collect
+   * the further bytes.
+   */
+  private void spill() throws IOException {
+    tempFile = File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX, tempDirectory);
+    try {
+      randomAccessFile = new RandomAccessFile(tempFile, "rw");
+      fileChannel = randomAccessFile.getChannel();
+      for (ByteBuffer segment : segments) {
+        writeToFile(segment);
+      }
+    } catch (IOException e) {
+      if (randomAccessFile != null) {
+        randomAccessFile.close();
+      }
+      fileChannel = null;
+      randomAccessFile = null;
+      tempFile.delete();
+      tempFile = null;
+      throw e;
+    }
+    ByteBuffer firstSegment = segments.get(0);
+    segments.clear();
+    segments.add(firstSegment);
+  }
+
+  /**
+   * Writes the content from a position to a channel until the end of the content or until the
+   * channel does not accept more bytes, which can happen if the channel is in non-blocking mode. In
+   * the latter case, the transfer can be resumed from the returned position later. In case the
+   * content is in a temporary file, it is transferred via
+   * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so the operating system can
+   * copy the bytes without passing them through the Java heap.
+   *
+   * @param position
+   *          The position of the first byte to transfer.
+   * @param target
+   *          The channel that the content is written to.
+   * @return The number of bytes that were transferred.
+   * @throws IOException
+   *           if the content cannot be read or written.
+   * @throws IllegalStateException
+   *           if the writer is not closed yet or it is disposed.
+   */
+  public long transferTo(final long position, final WritableByteChannel target)
+      throws IOException {
+    ensureReadable();
+    if (position < 0 || position > length) {
+      throw new IllegalArgumentException("Position is out of the content: " + position);
+    }
+    long currentPosition = position;
+    if (fileChannel != null) {
+      while (currentPosition < length) {
+        long n = fileChannel.transferTo(currentPosition, length - currentPosition, target);
+        if (n <= 0) {
+          break;
+        }
+        currentPosition += n;
+      }
+      return currentPosition - position;
+    }
+    long segmentStart = 0;
+    for (ByteBuffer segment : segments) {
+      long segmentEnd = segmentStart + segment.position();
+      if (currentPosition < segmentEnd) {
+        ByteBuffer content = segment.duplicate();
+        content.flip();
+        content.position((int) (currentPosition - segmentStart));
+        while (content.hasRemaining()) {
+          int n = target.write(content);
+          if (n <= 0) {
+            return currentPosition - position;
+          }
+          currentPosition += n;
+        }
+      }
+      segmentStart = segmentEnd;
+    }
+    return currentPosition - position;
+  }
+
+  /**
+   * Writes the whole content to a channel. See {@link #transferTo(long, WritableByteChannel)}.
+   * The channel must be in blocking mode, non-blocking channels should be written via
+   * {@link #transferTo(long, WritableByteChannel)} when they are ready for writing.
+   *
+   * @param target
+   *          The channel that the content is written to.
+   * @throws IOException
+   *           if the content cannot be read or written or the channel did not accept all of the
+   *           content.
+   * @throws IllegalArgumentException
+   *           if the channel is in non-blocking mode.
+   * @throws IllegalStateException
+   *           if the writer is not closed yet or it is disposed.
+   */
+  public void transferTo(final WritableByteChannel target) throws IOException {
+    if (target instanceof SelectableChannel && !((SelectableChannel) target).isBlocking()) {
+      throw new IllegalArgumentException("Channel must be in blocking mode");
+    }
+    long transferred = transferTo(0, target);
+    if (transferred != length) {
+      throw new IOException("Channel accepted only " + transferred + " of " + length + " bytes");
+    }
+  }
+
+  @Override
+  protected void writeBytes(final ByteBuffer bytes) throws IOException {
+    length += bytes.remaining();
+    while (bytes.hasRemaining()) {
+      ByteBuffer segment = acquireWritableSegment();
+      int n = Math.min(bytes.remaining(), segment.remaining());
+      int originalLimit = bytes.limit();
+      bytes.limit(bytes.position() + n);
+      segment.put(bytes);
+      bytes.limit(originalLimit);
+    }
+  }
+
+  private void writeToFile(final ByteBuffer segment) throws IOException {
+    segment.flip();
+    while (segment.hasRemaining()) {
+      fileChannel.write(segment);
+    }
+    segment.clear();
+  }
+
+}
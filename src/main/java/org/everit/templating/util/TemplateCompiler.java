@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+/**
+ * Compiles templates for {@link CompiledTemplateCache} and tells if the source of a template
+ * changed.
+ *
+ * @param <K>
+ *          The type of the key that identifies the source of a template.
+ * @param <T>
+ *          The type of the compiled template.
+ */
+public interface TemplateCompiler<K, T> {
+
+  /**
+   * Compiles a template.
+   *
+   * @param key
+   *          The key of the template.
+   * @return The compiled template.
+   * @throws CompileException
+   *           if the template cannot be compiled.
+   * @throws Exception
+   *           if the source of the template cannot be read. The cache wraps these exceptions into a
+   *           {@link CompileException}.
+   */
+  T compile(K key) throws Exception;
+
+  /**
+   * Returns the current version of the template source, like the last modification time or the
+   * hash of the content. The cache compiles the template again if the version is not equal to the
+   * one that was returned before the last compilation.
+   *
+   * @param key
+   *          The key of the template.
+   * @return The version of the source or <code>null</code> if the source is not versioned and the
+   *         compiled template should never be reloaded.
+   */
+  Object getVersion(K key);
+
+  /**
+   * Returns the weight of a compiled template that is compared to the maximum weight of the cache.
+   * The weight can be the size of the template source, or 1 to limit the number of templates.
+   *
+   * @param key
+   *          The key of the template.
+   * @param compiledTemplate
+   *          The compiled template.
+   * @return The weight of the template that must not be negative.
+   */
+  long weigh(K key, T compiledTemplate);
+}
@@ -16,20 +16,95 @@
 package org.everit.templating.util;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Writer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Wrapper around a {@link Writer} that throws unchecked exception instead of {@link IOException}.
  */
 public class TemplateWriter {
 
+  /**
+   * Whether an interrupt of the rendering thread should abort the rendering.
+   */
+  private final boolean abortOnInterrupt;
+
+  /**
+   * The filter that compacts the appended text or <code>null</code>.
+   */
+  private final WhitespaceCompactingWriter compactingWriter;
+
+  /**
+   * The cache that is used by {@link #appendEncoded(Object, ValueEncoder)} or <code>null</code>.
+   */
+  private EncodedValueCache encodedValueCache;
+
+  /**
+   * The maximum number of characters that can be appended or -1 if the output is not limited.
+   */
+  private final long maxOutputLength;
+
+  /**
+   * The number of characters that were appended.
+   */
+  private long outputLength = 0;
+
+  /**
+   * The deadline that is checked when text is appended or <code>null</code>.
+   */
+  private RenderDeadline renderDeadline;
+
   /**
    * The wrapped writer.
    */
   private final Writer writer;
 
   public TemplateWriter(final Writer writer) {
+    this(writer, -1, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param writer
+   *          The wrapped writer.
+   * @param maxOutputLength
+   *          The maximum number of characters that can be appended. In case the limit would be
+   *          exceeded, an {@link OutputLimitExceededException} is thrown and the text is not
+   *          written. A negative value means that the output is not limited.
+   * @param abortOnInterrupt
+   *          In case of true, a {@link RenderAbortedException} is thrown if the rendering thread
+   *          is interrupted when text is appended. The interrupted status of the thread is kept.
+   */
+  public TemplateWriter(final Writer writer, final long maxOutputLength,
+      final boolean abortOnInterrupt) {
+    this(writer, maxOutputLength, abortOnInterrupt, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param writer
+   *          The wrapped writer.
+   * @param maxOutputLength
+   *          See {@link #TemplateWriter(Writer, long, boolean)}.
+   * @param abortOnInterrupt
+   *          See {@link #TemplateWriter(Writer, long, boolean)}.
+   * @param compactWhitespace
+   *          In case of true, the appended text is passed through a
+   *          {@link WhitespaceCompactingWriter} before it reaches the wrapped writer. The output
+   *          limit applies to the text before compaction. The whitespace at the end of the
+   *          appended text is held back until {@link #flush()} is called, so template engines
+   *          must call it at the end of every rendering.
+   */
+  public TemplateWriter(final Writer writer, final long maxOutputLength,
+      final boolean abortOnInterrupt, final boolean compactWhitespace) {
     this.writer = writer;
+    this.maxOutputLength = maxOutputLength < 0 ? -1 : maxOutputLength;
+    this.abortOnInterrupt = abortOnInterrupt;
+    this.compactingWriter = compactWhitespace ? new WhitespaceCompactingWriter(writer) : null;
   }
 
   /**
@@ -40,8 +115,24 @@ public class TemplateWriter {
    * @return The instance of this {@link TemplateWriter}.
    */
   public TemplateWriter append(final String text) {
+    if (abortOnInterrupt && Thread.currentThread().isInterrupted()) {
+      throw new RenderAbortedException("Rendering thread was interrupted");
+    }
+    if (renderDeadline != null) {
+      renderDeadline.check();
+    }
+    long newOutputLength = outputLength + text.length();
+    if (maxOutputLength >= 0 && newOutputLength > maxOutputLength) {
+      throw new OutputLimitExceededException("Output exceeded the limit of " + maxOutputLength
+          + " characters");
+    }
+    outputLength = newOutputLength;
     try {
-      this.writer.write(text);
+      if (compactingWriter != null) {
+        compactingWriter.write(text);
+      } else {
+        this.writer.write(text);
+      }
     } catch (IOException e) {
       // If it was java 8, we would throw an UncheckedIOException.
       throw new RuntimeException(e);
@@ -49,8 +140,142 @@ public class TemplateWriter {
     return this;
   }
 
+  /**
+   * Appending the encoded form of a value. In case a cache is set via
+   * {@link #setEncodedValueCache(EncodedValueCache)}, the encoding of repeated value instances is
+   * skipped.
+   *
+   * @param value
+   *          The value to append.
+   * @param encoder
+   *          The encoder that formats and escapes the value.
+   * @return The instance of this {@link TemplateWriter}.
+   */
+  public TemplateWriter appendEncoded(final Object value, final ValueEncoder encoder) {
+    if (encodedValueCache != null) {
+      return append(encodedValueCache.encode(value, encoder));
+    }
+    return append(encoder.encode(value));
+  }
+
+  /**
+   * Appending the result of a fragment that is rendered in the background. In case the wrapped
+   * writer is an {@link OrderedFragmentWriter}, a placeholder is written and the rendering goes on
+   * without waiting for the fragment. Otherwise the call blocks until the fragment is rendered.
+   * Fragments that are written via placeholders are not passed through the whitespace compaction.
+   *
+   * @param fragment
+   *          The future result of the fragment, normally returned by
+   *          {@link AbstractTemplateContext#renderFragmentAsync}.
+   * @return The instance of this {@link TemplateWriter}.
+   */
+  public TemplateWriter appendFragment(final Future<String> fragment) {
+    try {
+      if (writer instanceof OrderedFragmentWriter) {
+        if (compactingWriter != null) {
+          compactingWriter.writePendingWhitespace();
+        }
+        ((OrderedFragmentWriter) writer).writeFragment(fragment);
+        return this;
+      }
+      if (renderDeadline != null) {
+        return append(renderDeadline.await(fragment));
+      }
+      return append(fragment.get());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(new InterruptedIOException(
+          "Interrupted while waiting for a fragment to be rendered"));
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * Writes the whitespace that is held back by the whitespace compaction and flushes the wrapped
+   * writer. Template engines should call this method at the end of every rendering, otherwise the
+   * trailing whitespace of the output is lost if the whitespace compaction is switched on.
+   */
+  public void flush() {
+    try {
+      if (compactingWriter != null) {
+        compactingWriter.writePendingWhitespace();
+      }
+      writer.flush();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public EncodedValueCache getEncodedValueCache() {
+    return encodedValueCache;
+  }
+
+  public long getMaxOutputLength() {
+    return maxOutputLength;
+  }
+
+  /**
+   * Returns the number of characters that were appended. The results of fragments that were
+   * appended via {@link OrderedFragmentWriter} placeholders are not counted.
+   *
+   * @return The number of appended characters.
+   */
+  public long getOutputLength() {
+    return outputLength;
+  }
+
+  public RenderDeadline getRenderDeadline() {
+    return renderDeadline;
+  }
+
+  /**
+   * Returns the wrapped writer. In case the whitespace compaction is switched on, text that is
+   * written to the wrapped writer directly ends up before the whitespace that is held back by the
+   * compaction, unless {@link #flush()} is called first.
+   *
+   * @return The wrapped writer.
+   */
   public Writer getWrapped() {
     return writer;
   }
 
+  public boolean isCompactWhitespace() {
+    return compactingWriter != null;
+  }
+
+  /**
+   * Sets the cache that is used by {@link #appendEncoded(Object, ValueEncoder)}.
+   *
+   * @param encodedValueCache
+   *          The cache or <code>null</code> if every value should be encoded.
+   */
+  public void setEncodedValueCache(final EncodedValueCache encodedValueCache) {
+    this.encodedValueCache = encodedValueCache;
+  }
+
+  /**
+   * Sets the deadline of the rendering that is checked cheaply every time text is appended. The
+   * waiting for fragments in {@link #appendFragment(Future)} is limited by the deadline as well.
+   * In case the wrapped writer is an {@link OrderedFragmentWriter}, the deadline is passed to it.
+   *
+   * @param renderDeadline
+   *          The deadline or <code>null</code> if the time of the rendering is not limited.
+   */
+  public void setRenderDeadline(final RenderDeadline renderDeadline) {
+    this.renderDeadline = renderDeadline;
+    if (writer instanceof OrderedFragmentWriter) {
+      ((OrderedFragmentWriter) writer).setRenderDeadline(renderDeadline);
+    }
+  }
+
 }
@@ -167,6 +167,42 @@ public class UniversalIterable<T> implements Iterable<T> {
     }
   }
 
+  /**
+   * Iterator that checks the deadline of the rendering before returning the next element. Removal
+   * is delegated to the wrapped iterator.
+   *
+   * @param <T>
+   *          The type of the elements.
+   */
+  private static class DeadlineCheckingIterator<T> implements Iterator<T> {
+
+    private final RenderDeadline renderDeadline;
+
+    private final Iterator<T> wrapped;
+
+    DeadlineCheckingIterator(final Iterator<T> wrapped, final RenderDeadline renderDeadline) {
+      this.wrapped = wrapped;
+      this.renderDeadline = renderDeadline;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return wrapped.hasNext();
+    }
+
+    @Override
+    public T next() {
+      renderDeadline.check();
+      return wrapped.next();
+    }
+
+    @Override
+    public void remove() {
+      wrapped.remove();
+    }
+
+  }
+
   /**
    * Iterator that goes through a double array.
    */
@@ -308,6 +344,8 @@ public class UniversalIterable<T> implements Iterable<T> {
 
   private final CollectionTypes collectionType;
 
+  private final RenderDeadline renderDeadline;
+
   /**
    * Constructor.
    *
@@ -315,6 +353,21 @@ public class UniversalIterable<T> implements Iterable<T> {
    *          The collection that this iterator will iterate through.
    */
   public UniversalIterable(final Object collection) {
+    this(collection, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param collection
+   *          The collection that this iterator will iterate through.
+   * @param renderDeadline
+   *          The deadline of the rendering that is checked cheaply before every element or
+   *          <code>null</code> if the time of the rendering is not limited. The deadline is also
+   *          passed to the iterators of {@link PrefetchingIterable} instances, so waiting for the
+   *          next element is limited by the deadline.
+   */
+  public UniversalIterable(final Object collection, final RenderDeadline renderDeadline) {
     if (collection == null) {
       throw new NullPointerException("Collection must not be null");
     }
@@ -337,6 +390,7 @@ public class UniversalIterable<T> implements Iterable<T> {
 
     this.collectionType = selectedCollectionType;
     this.collection = collection;
+    this.renderDeadline = renderDeadline;
   }
 
   @Override
@@ -385,6 +439,13 @@ public class UniversalIterable<T> implements Iterable<T> {
 
     @SuppressWarnings("unchecked")
     Iterator<T> typedResult = (Iterator<T>) result;
+    if (renderDeadline != null) {
+      if (typedResult instanceof PrefetchingIterator) {
+        // Otherwise hasNext() could wait for a slow source longer than the deadline
+        ((PrefetchingIterator<T>) typedResult).setRenderDeadline(renderDeadline);
+      }
+      return new DeadlineCheckingIterator<T>(typedResult, renderDeadline);
+    }
     return typedResult;
   }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Collects which variables are read by the fragments of templates and at which depth of the scope
+ * chain they were found. The collected information shows which parts of the model are really used
+ * by the templates. The class is thread-safe, so one instance can collect the accesses of many
+ * renderings.
+ *
+ * <p>
+ * The accesses are recorded by {@link VariableAccessTrackingMap} instances. The fragments that are
+ * rendered via an {@link AbstractTemplateContext} use such maps when a profile is set via
+ * {@link AbstractTemplateContext#setVariableAccessProfile(VariableAccessProfile)}.
+ */
+public class VariableAccessProfile {
+
+  /**
+   * The depth that is recorded when the variable is not available.
+   */
+  public static final int NOT_FOUND = -1;
+
+  /**
+   * The recorded depths by fragment id and variable name.
+   */
+  private final Map<String, Map<String, Set<Integer>>> accesses =
+      new HashMap<String, Map<String, Set<Integer>>>();
+
+  /**
+   * Removes all recorded accesses.
+   */
+  public synchronized void clear() {
+    accesses.clear();
+  }
+
+  /**
+   * Writes the recorded accesses in a tab separated format. Every line contains the id of the
+   * fragment (empty for the root of the template), the name of the variable and the comma
+   * separated list of depths where the variable was found. The lines are sorted by fragment id and
+   * variable name.
+   *
+   * @param out
+   *          The target of the export.
+   * @throws IOException
+   *           if the target throws an exception.
+   */
+  public void export(final Appendable out) throws IOException {
+    Map<String, Map<String, Set<Integer>>> accessedKeys = getAccessedKeys();
+    for (Map.Entry<String, Map<String, Set<Integer>>> fragmentEntry : accessedKeys.entrySet()) {
+      String fragmentId = fragmentEntry.getKey();
+      for (Map.Entry<String, Set<Integer>> keyEntry : fragmentEntry.getValue().entrySet()) {
+        out.append(fragmentId == null ? "" : fragmentId).append('\t').append(keyEntry.getKey())
+            .append('\t');
+        boolean first = true;
+        for (Integer depth : keyEntry.getValue()) {
+          if (!first) {
+            out.append(',');
+          }
+          out.append(String.valueOf(depth));
+          first = false;
+        }
+        out.append('\n');
+      }
+    }
+  }
+
+  /**
+   * Returns a copy of the recorded accesses.
+   *
+   * @return The depths where the variables were found by fragment id and variable name, sorted by
+   *         fragment id and variable name. The root of the template has the <code>null</code>
+   *         fragment id. A depth of {@link #NOT_FOUND} means that the variable was read but it was
+   *         not available.
+   */
+  public synchronized Map<String, Map<String, Set<Integer>>> getAccessedKeys() {
+    Map<String, Map<String, Set<Integer>>> result =
+        new TreeMap<String, Map<String, Set<Integer>>>(NullFirstComparator.INSTANCE);
+    for (Map.Entry<String, Map<String, Set<Integer>>> fragmentEntry : accesses.entrySet()) {
+      Map<String, Set<Integer>> keys = new TreeMap<String, Set<Integer>>();
+      for (Map.Entry<String, Set<Integer>> keyEntry : fragmentEntry.getValue().entrySet()) {
+        keys.put(keyEntry.getKey(),
+            Collections.unmodifiableSet(new TreeSet<Integer>(keyEntry.getValue())));
+      }
+      result.put(fragmentEntry.getKey(), Collections.unmodifiableMap(keys));
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * Records the read of a variable.
+   *
+   * @param fragmentId
+   *          The id of the fragment that read the variable or <code>null</code> for the root of the
+   *          template.
+   * @param key
+   *          The name of the variable.
+   * @param depth
+   *          The depth of the scope where the variable was found, 0 being the scope of the
+   *          fragment, or {@link #NOT_FOUND}.
+   */
+  public synchronized void record(final String fragmentId, final Object key, final int depth) {
+    Map<String, Set<Integer>> keys = accesses.get(fragmentId);
+    if (keys == null) {
+      keys = new HashMap<String, Set<Integer>>();
+      accesses.put(fragmentId, keys);
+    }
+    String keyString = String.valueOf(key);
+    Set<Integer> depths = keys.get(keyString);
+    if (depths == null) {
+      depths = new TreeSet<Integer>();
+      keys.put(keyString, depths);
+    }
+    depths.add(Integer.valueOf(depth));
+  }
+}
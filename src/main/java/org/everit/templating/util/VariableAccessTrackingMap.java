@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.util.Map;
+
+/**
+ * {@link InheritantMap} that records every variable read into a {@link VariableAccessProfile}
+ * together with the depth of the scope where the variable was found. The parent levels of the
+ * chain are read directly, so the reads are recorded only for the fragment of this map, even if an
+ * ancestor is also a tracking map.
+ */
+public class VariableAccessTrackingMap extends InheritantMap<String, Object> {
+
+  private final String fragmentId;
+
+  private final VariableAccessProfile profile;
+
+  /**
+   * Constructor.
+   *
+   * @param parentMap
+   *          The map that holds key-value pairs that are accessible, but not modifiable via this
+   *          map instance.
+   * @param profile
+   *          The profile that receives the variable reads.
+   * @param fragmentId
+   *          The id of the fragment that uses this map or <code>null</code> for the root of the
+   *          template.
+   */
+  public VariableAccessTrackingMap(final Map<String, Object> parentMap,
+      final VariableAccessProfile profile, final String fragmentId) {
+    super(parentMap, false);
+    this.profile = profile;
+    this.fragmentId = fragmentId;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    int depth = depthOf(key);
+    profile.record(fragmentId, key, depth);
+    return depth != VariableAccessProfile.NOT_FOUND;
+  }
+
+  /**
+   * Finds the level of the chain that holds the key.
+   */
+  private int depthOf(final Object key) {
+    Map<String, Object> level = this;
+    int depth = 0;
+    while (level instanceof InheritantMap) {
+      InheritantMap<String, Object> inheritantLevel = (InheritantMap<String, Object>) level;
+      if (inheritantLevel.getInternalMap().containsKey(key)) {
+        return depth;
+      }
+      level = inheritantLevel.getParentMap();
+      depth++;
+    }
+    if (level != null && level.containsKey(key)) {
+      return depth;
+    }
+    return VariableAccessProfile.NOT_FOUND;
+  }
+
+  @Override
+  public Object get(final Object key) {
+    Map<String, Object> level = this;
+    int depth = 0;
+    while (level instanceof InheritantMap) {
+      InheritantMap<String, Object> inheritantLevel = (InheritantMap<String, Object>) level;
+      Map<String, Object> internalMap = inheritantLevel.getInternalMap();
+      Object result = internalMap.get(key);
+      if (result != null || internalMap.containsKey(key)) {
+        profile.record(fragmentId, key, depth);
+        return result;
+      }
+      level = inheritantLevel.getParentMap();
+      depth++;
+    }
+    if (level != null && level.containsKey(key)) {
+      profile.record(fragmentId, key, depth);
+      return level.get(key);
+    }
+    profile.record(fragmentId, key, VariableAccessProfile.NOT_FOUND);
+    return null;
+  }
+
+  public String getFragmentId() {
+    return fragmentId;
+  }
+
+  public VariableAccessProfile getProfile() {
+    return profile;
+  }
+}
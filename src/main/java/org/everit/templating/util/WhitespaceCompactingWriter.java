@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.templating.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Writer that collapses the insignificant whitespace of HTML output while the text is written.
+ * Every run of whitespace characters is replaced by one newline if the run contained a newline, or
+ * by one space otherwise. The content of <code>pre</code>, <code>textarea</code>,
+ * <code>script</code> and <code>style</code> elements and the quoted attribute values are written
+ * without changes, like comments, declarations and processing instructions. Quotes are only
+ * recognized after the equals sign of an attribute within a tag. The state of the filter is kept
+ * between the write calls, so the text can be written in any chunks. The filtered text is passed
+ * to the wrapped writer at the end of every write call, except the whitespace at the end of the
+ * text that is kept back until the next non-whitespace character is written or the writer is
+ * closed. The memory usage of the filter is constant.
+ *
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class WhitespaceCompactingWriter extends Writer {
+
+  /**
+   * The states of the filter.
+   */
+  private enum State {
+    /**
+     * Within a comment, after the <code>&lt;!--</code> characters.
+     */
+    COMMENT,
+
+    /**
+     * Within a declaration or processing instruction, after the <code>&lt;!</code> or
+     * <code>&lt;?</code> characters.
+     */
+    DECLARATION,
+
+    /**
+     * After a <code>&lt;</code> character in text.
+     */
+    MARKUP_START,
+
+    /**
+     * Within an attribute value that is surrounded by quotes.
+     */
+    QUOTED_ATTRIBUTE,
+
+    /**
+     * Within an element whose content must not be changed.
+     */
+    RAW_CONTENT,
+
+    /**
+     * Within a tag, after the name of the tag.
+     */
+    TAG,
+
+    /**
+     * Within the name of a tag.
+     */
+    TAG_NAME,
+
+    /**
+     * Outside of tags.
+     */
+    TEXT
+  }
+
+  private static final int BUFFER_SIZE = 1024;
+
+  /**
+   * The longest tag name that is recognized. Longer names are not collected.
+   */
+  private static final int MAX_TAG_NAME_LENGTH = 16;
+
+  private static final String[] RAW_ELEMENT_NAMES = { "pre", "textarea", "script", "style" };
+
+  /**
+   * Compacts a standalone text, like a whole document, as it would be compacted at the
+   * beginning of the output. The text must not start within a tag or an element whose content is
+   * kept.
+   *
+   * @param text
+   *          The text to compact.
+   * @return The compacted text.
+   */
+  public static String compact(final String text) {
+    StringWriter stringWriter = new StringWriter(text.length());
+    WhitespaceCompactingWriter compactingWriter = new WhitespaceCompactingWriter(stringWriter);
+    try {
+      compactingWriter.write(text);
+      compactingWriter.close();
+    } catch (IOException e) {
+      // StringWriter does not throw IOException
+      throw new RuntimeException(e);
+    }
+    return stringWriter.toString();
+  }
+
+  private static boolean isWhitespace(final char c) {
+    return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f';
+  }
+
+  /**
+   * Whether the last non-whitespace character within the current tag was an equals sign, so an
+   * attribute value can start.
+   */
+  private boolean afterEquals = false;
+
+  /**
+   * The closing tag that ends the current raw element, like <code>&lt;/pre</code>.
+   */
+  private String closingTag;
+
+  /**
+   * The number of characters of {@link #closingTag} that were matched at the end of the output.
+   */
+  private int closingTagMatchLength = 0;
+
+  /**
+   * The number of dashes at the start of a declaration, -1 if the declaration cannot be a
+   * comment, or the number of dashes at the end of the text of a comment.
+   */
+  private int dashCount = 0;
+
+  /**
+   * Whether the last character of the current tag was a slash.
+   */
+  private boolean lastCharSlash = false;
+
+  private final char[] outputBuffer = new char[BUFFER_SIZE];
+
+  private int outputLength = 0;
+
+  /**
+   * The whitespace that is written before the next non-whitespace character: 0 if there is no
+   * whitespace, otherwise a space or a newline.
+   */
+  private char pendingWhitespace = 0;
+
+  private char quote = 0;
+
+  /**
+   * The name of the raw element whose start tag is being processed or <code>null</code>.
+   */
+  private String rawElementName;
+
+  private State state = State.TEXT;
+
+  private final char[] tagName = new char[MAX_TAG_NAME_LENGTH];
+
+  private int tagNameLength = 0;
+
+  /**
+   * The wrapped writer.
+   */
+  private final Writer writer;
+
+  public WhitespaceCompactingWriter(final Writer writer) {
+    this.writer = writer;
+  }
+
+  @Override
+  public void close() throws IOException {
+    emitPendingWhitespace();
+    flushOutputBuffer();
+    writer.close();
+  }
+
+  private void emit(final char c) throws IOException {
+    if (outputLength == outputBuffer.length) {
+      flushOutputBuffer();
+    }
+    outputBuffer[outputLength++] = c;
+  }
+
+  private void emitPendingWhitespace() throws IOException {
+    if (pendingWhitespace != 0) {
+      emit(pendingWhitespace);
+      pendingWhitespace = 0;
+    }
+  }
+
+  private void endTagName() {
+    rawElementName = null;
+    if (tagNameLength <= MAX_TAG_NAME_LENGTH) {
+      String name = new String(tagName, 0, tagNameLength).toLowerCase(Locale.ENGLISH);
+      for (String rawElement : RAW_ELEMENT_NAMES) {
+        if (rawElement.equals(name)) {
+          rawElementName = rawElement;
+        }
+      }
+    }
+    startTag();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    writer.flush();
+  }
+
+  private void flushOutputBuffer() throws IOException {
+    if (outputLength > 0) {
+      writer.write(outputBuffer, 0, outputLength);
+      outputLength = 0;
+    }
+  }
+
+  public Writer getWrapped() {
+    return writer;
+  }
+
+  private void process(final char c) throws IOException {
+    switch (state) {
+      case TEXT:
+        processText(c);
+        break;
+      case MARKUP_START:
+        processMarkupStart(c);
+        break;
+      case TAG_NAME:
+        processTagName(c);
+        break;
+      case TAG:
+        processTag(c);
+        break;
+      case QUOTED_ATTRIBUTE:
+        if (c == quote) {
+          state = State.TAG;
+        }
+        emit(c);
+        break;
+      case RAW_CONTENT:
+        processRawContent(c);
+        break;
+      case DECLARATION:
+        processDeclaration(c);
+        break;
+      case COMMENT:
+        emit(c);
+        if (c == '-') {
+          dashCount++;
+        } else if (c == '>' && dashCount >= 2) {
+          state = State.TEXT;
+        } else {
+          dashCount = 0;
+        }
+        break;
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  private void processDeclaration(final char c) throws IOException {
+    emit(c);
+    if (c == '>') {
+      state = State.TEXT;
+    } else if (c == '-' && dashCount >= 0) {
+      dashCount++;
+      if (dashCount == 2) {
+        dashCount = 0;
+        state = State.COMMENT;
+      }
+    } else {
+      dashCount = -1;
+    }
+  }
+
+  private void processMarkupStart(final char c) throws IOException {
+    if (Character.isLetter(c)) {
+      tagNameLength = 0;
+      state = State.TAG_NAME;
+      processTagName(c);
+    } else if (c == '/') {
+      // Closing tag outside of raw elements
+      emit(c);
+      rawElementName = null;
+      startTag();
+    } else if (c == '!' || c == '?') {
+      emit(c);
+      dashCount = c == '!' ? 0 : -1;
+      state = State.DECLARATION;
+    } else {
+      // The character after a stray less-than sign is part of the text
+      state = State.TEXT;
+      processText(c);
+    }
+  }
+
+  private void processRawContent(final char c) throws IOException {
+    emit(c);
+    if (Character.toLowerCase(c) == closingTag.charAt(closingTagMatchLength)) {
+      closingTagMatchLength++;
+      if (closingTagMatchLength == closingTag.length()) {
+        closingTag = null;
+        closingTagMatchLength = 0;
+        startTag();
+      }
+    } else if (c == '<') {
+      closingTagMatchLength = 1;
+    } else {
+      closingTagMatchLength = 0;
+    }
+  }
+
+  private void processTag(final char c) throws IOException {
+    if (isWhitespace(c)) {
+      if (pendingWhitespace == 0) {
+        pendingWhitespace = ' ';
+      }
+      return;
+    }
+    emitPendingWhitespace();
+    emit(c);
+    if (afterEquals && (c == '"' || c == '\'')) {
+      quote = c;
+      state = State.QUOTED_ATTRIBUTE;
+    } else if (c == '>') {
+      if (rawElementName != null && !lastCharSlash) {
+        closingTag = "</" + rawElementName;
+        closingTagMatchLength = 0;
+        state = State.RAW_CONTENT;
+      } else {
+        state = State.TEXT;
+      }
+      rawElementName = null;
+    }
+    afterEquals = c == '=';
+    lastCharSlash = c == '/';
+  }
+
+  private void processTagName(final char c) throws IOException {
+    if (Character.isLetterOrDigit(c) || c == '-' || c == ':') {
+      if (tagNameLength < MAX_TAG_NAME_LENGTH) {
+        tagName[tagNameLength] = c;
+      }
+      // A length above the maximum means that the name is not recognized
+      if (tagNameLength <= MAX_TAG_NAME_LENGTH) {
+        tagNameLength++;
+      }
+      emit(c);
+    } else {
+      endTagName();
+      processTag(c);
+    }
+  }
+
+  private void processText(final char c) throws IOException {
+    if (isWhitespace(c)) {
+      if (c == '\n') {
+        pendingWhitespace = '\n';
+      } else if (pendingWhitespace == 0) {
+        pendingWhitespace = ' ';
+      }
+      return;
+    }
+    emitPendingWhitespace();
+    emit(c);
+    if (c == '<') {
+      state = State.MARKUP_START;
+    }
+  }
+
+  private void startTag() {
+    afterEquals = false;
+    lastCharSlash = false;
+    state = State.TAG;
+  }
+
+  @Override
+  public void write(final char[] cbuf, final int off, final int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      process(cbuf[i]);
+    }
+    flushOutputBuffer();
+  }
+
+  @Override
+  public void write(final String str, final int off, final int len) throws IOException {
+    for (int i = off, end = off + len; i < end; i++) {
+      process(str.charAt(i));
+    }
+    flushOutputBuffer();
+  }
+
+  /**
+   * Writes the whitespace that was kept back at the end of the filtered text to the wrapped
+   * writer. Should be called before something is written to the wrapped writer directly.
+   *
+   * @throws IOException
+   *           if the wrapped writer throws an exception.
+   */
+  public void writePendingWhitespace() throws IOException {
+    emitPendingWhitespace();
+    flushOutputBuffer();
+  }
+}